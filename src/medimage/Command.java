@@ -6,6 +6,8 @@
 package medimage;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import medimage.models.Study;
 import medimage.views.improvedimageview.ImageView;
 
@@ -16,6 +18,8 @@ import medimage.views.improvedimageview.ImageView;
  */
 public abstract class Command implements Serializable {
     
+    private static final long serialVersionUID = 6417222431303658393L;
+    
     /**
      * Applies the command's effects.
      * @param view The ImageView that the program is currently displaying.
@@ -29,4 +33,34 @@ public abstract class Command implements Serializable {
      * @param study The study that the program is currently displaying.
      */
     public abstract void undo(ImageView view, Study study);
+    
+    /**
+     * Combines this command with one applied straight after it.
+     * @param next Command applied after this one.
+     * @return A command with the effect of both, or null if they can't be
+     * combined.
+     */
+    public Command combine(Command next) {
+        return null;
+    }
+    
+    /**
+     * Combines each run of adjacent commands that can be combined.
+     * @param commands Commands, in the order they're applied.
+     * @return Commands with the same effect.
+     */
+    public static List<Command> combineAll(List<Command> commands) {
+        List<Command> combined = new ArrayList<Command>(commands.size());
+        for(Command c : commands) {
+            if(!combined.isEmpty()) {
+                Command merged = combined.get(combined.size()-1).combine(c);
+                if(merged != null) {
+                    combined.set(combined.size()-1, merged);
+                    continue;
+                }
+            }
+            combined.add(c);
+        }
+        return combined;
+    }
 }
@@ -36,6 +36,27 @@ public interface ImageIterator {
      */
     public abstract Image[] getImages();
     
+    /**
+     * Returns an image set relative to the current one, without moving the
+     * iterator.
+     * @param offset Number of sets from the current one; negative for sets
+     * before it.
+     * @return Image set, or null if it's out of range.
+     */
+    public abstract Image[] peek(int offset);
+    
+    /**
+     * Gets the direction the iterator was last scrolled in.
+     * @return 1 for forwards, -1 for backwards, 0 if it hasn't been scrolled.
+     */
+    public abstract int getDirection();
+    
+    /**
+     * Gets how fast the iterator is being scrolled.
+     * @return Speed in image sets per second, or 0 if it isn't scrolling.
+     */
+    public abstract double getVelocity();
+    
     /**
      * Gets the index of the current image set.
      * @return Index.
@@ -0,0 +1,145 @@
+/**
+ * File: ImagePrefetcher.java
+ * Description: Loads the images ahead of an ImageIterator in the background.
+ */
+
+package medimage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import medimage.models.Image;
+
+/**
+ * Loads the image sets that an iterator is about to scroll to, so they're
+ * already decoded when the user gets to them.
+ * The number of sets loaded ahead grows with the scrolling speed. When the
+ * scrolling direction reverses, or the iterator moves past images that
+ * haven't been loaded yet, the outstanding work is cancelled.
+ * @author col32
+ */
+public class ImagePrefetcher {
+    
+    /**
+     * Number of sets to load ahead when not scrolling.
+     */
+    private static final int MIN_LOOKAHEAD = 2;
+    
+    /**
+     * Maximum number of sets to load ahead.
+     */
+    private static final int MAX_LOOKAHEAD = 32;
+    
+    /**
+     * How far ahead to load, in seconds of scrolling at the current speed.
+     */
+    private static final double LOOKAHEAD_SECONDS = 0.5;
+    
+    private final ExecutorService executor;
+    
+    /**
+     * Outstanding loads, in the order they were submitted.
+     */
+    private final Map<Image, Future<?>> pending = new LinkedHashMap<Image, Future<?>>();
+    private int direction;
+    
+    /**
+     * Creates a prefetcher.
+     * @param threads Number of images to load at once.
+     */
+    public ImagePrefetcher(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "medimage-prefetch");
+                        t.setDaemon(true); // Don't keep the application open.
+                        t.setPriority(Thread.NORM_PRIORITY-1);
+                        return t;
+                    }
+                });
+    }
+    
+    /**
+     * Creates a prefetcher that uses half of the available processors.
+     */
+    public ImagePrefetcher() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors()/2));
+    }
+    
+    /**
+     * Schedules loading of the sets ahead of an iterator's current position,
+     * and cancels loads that are no longer needed. Should be called each time
+     * the iterator moves.
+     * @param it Iterator to load ahead of.
+     */
+    public void update(ImageIterator it) {
+        int dir = it.getDirection();
+        if(dir == 0)
+            dir = 1; // Assume the user will scroll forwards first.
+        
+        if(dir != direction) {
+            cancel(); // Reversed; everything queued is behind us now.
+            direction = dir;
+        }
+        
+        int lookahead = (int)Math.ceil(it.getVelocity()*LOOKAHEAD_SECONDS);
+        lookahead = Math.min(Math.max(lookahead, MIN_LOOKAHEAD), MAX_LOOKAHEAD);
+        
+        // Find the images we want, nearest first.
+        Map<Image, Future<?>> wanted = new LinkedHashMap<Image, Future<?>>();
+        for(int i=1; i<=lookahead; i++) {
+            Image[] set = it.peek(i*dir);
+            if(set == null)
+                break;
+            for(Image img : set)
+                if(img != null)
+                    wanted.put(img, pending.remove(img));
+        }
+        
+        // Whatever's left is stale.
+        cancel();
+        
+        for(Map.Entry<Image, Future<?>> e : wanted.entrySet()) {
+            Future<?> f = e.getValue();
+            if(f == null)
+                f = executor.submit(new Loader(e.getKey()));
+            if(!f.isDone())
+                pending.put(e.getKey(), f);
+        }
+    }
+    
+    /**
+     * Cancels all outstanding loads. Loads that have already started are
+     * allowed to finish.
+     */
+    public void cancel() {
+        Iterator<Future<?>> it = pending.values().iterator();
+        while(it.hasNext()) {
+            it.next().cancel(false);
+            it.remove();
+        }
+    }
+    
+    /**
+     * Task that loads the data of an image.
+     */
+    private static class Loader implements Runnable {
+        private final Image img;
+        
+        Loader(Image img) {
+            this.img = img;
+        }
+        
+        @Override
+        public void run() {
+            img.getImageData();
+        }
+    }
+}
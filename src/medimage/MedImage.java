@@ -4,8 +4,10 @@
  */
 package medimage;
 
+import medimage.models.DisplayStateCodec;
 import medimage.views.ConnectionsView;
 import medimage.views.StudiesView;
+import medimage.views.WindowingOptionsView.WindowingCommand;
 import medimage.views.improvedimageview.ImageView;
 
 /**
@@ -49,6 +51,10 @@ public class MedImage {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        // Commands have to be registered before any display state is read.
+        // Tags are written to files, so never change or reuse them.
+        DisplayStateCodec.register(1, WindowingCommand.class, WindowingCommand.CODEC);
+        
         // Creates all the views, but hide all but the connections view.
         connectionsView = new ConnectionsView();
         studiesView = new StudiesView();
@@ -17,6 +17,7 @@ public class QuadImageIterator implements ImageIterator {
     
     private final List<Image> images;
     private int index;
+    private final ScrollTracker tracker = new ScrollTracker();
 
     /**
      * Creates a QuadImageIterator and starts it at the beginning of the list.
@@ -42,6 +43,7 @@ public class QuadImageIterator implements ImageIterator {
         if(index+4 >= images.size())
             return false;
         index += 4;
+        tracker.stepped(1);
         return true;
     }
 
@@ -50,19 +52,47 @@ public class QuadImageIterator implements ImageIterator {
         if(index-4 < 0)
             return false;
         index -= 4;
+        tracker.stepped(-1);
         return true;
     }
 
     @Override
     public Image[] getImages() {
+        return getSet(index);
+    }
+    
+    /**
+     * Returns the set of four images starting at an index.
+     * @param start Index of the first image.
+     * @return Image set, which may contain null items.
+     */
+    private Image[] getSet(int start) {
         Image[] set = new Image[4];
-        set[0] = getOrNull(index);
-        set[1] = getOrNull(index+1);
-        set[2] = getOrNull(index+2);
-        set[3] = getOrNull(index+3);
+        set[0] = getOrNull(start);
+        set[1] = getOrNull(start+1);
+        set[2] = getOrNull(start+2);
+        set[3] = getOrNull(start+3);
         return set;
     }
 
+    @Override
+    public Image[] peek(int offset) {
+        int start = index + offset*4;
+        if(start < 0 || start >= images.size())
+            return null;
+        return getSet(start);
+    }
+
+    @Override
+    public int getDirection() {
+        return tracker.getDirection();
+    }
+
+    @Override
+    public double getVelocity() {
+        return tracker.getVelocity();
+    }
+
     @Override
     public int getIndex() {
         return index;
@@ -82,5 +112,6 @@ public class QuadImageIterator implements ImageIterator {
     @Override
     public void setIndex(int index) {
         this.index = (index/4)*4; // Round down to nearest 4th
+        tracker.jumped();
     }
 }
@@ -0,0 +1,77 @@
+/**
+ * File: ScrollTracker.java
+ * Description: Keeps track of how an ImageIterator is being scrolled.
+ */
+
+package medimage;
+
+/**
+ * Tracks the direction and speed an iterator is being scrolled in.
+ * Used by the ImageIterator implementations so the prefetcher can tell which
+ * images are going to be needed next.
+ * @author col32
+ */
+public class ScrollTracker {
+    
+    /**
+     * Time after the last step at which scrolling is considered stopped.
+     */
+    private static final long IDLE_NANOS = 1000000000L;
+    
+    /**
+     * Weight of the newest step in the velocity average.
+     */
+    private static final double SMOOTHING = 0.5;
+    
+    private int direction;
+    private double velocity;
+    private long lastStep;
+    
+    /**
+     * Records that the iterator moved by one or more sets.
+     * @param sets Number of sets moved; positive for forwards, negative for
+     * backwards.
+     */
+    public synchronized void stepped(int sets) {
+        if(sets == 0)
+            return;
+        long now = System.nanoTime();
+        int dir = Integer.signum(sets);
+        
+        if(dir != direction || lastStep == 0 || now - lastStep > IDLE_NANOS)
+            velocity = 0; // Starting or reversing; no speed yet.
+        else {
+            double rate = Math.abs(sets)/((now - lastStep)/1e9);
+            velocity = velocity == 0 ? rate : SMOOTHING*rate + (1-SMOOTHING)*velocity;
+        }
+        direction = dir;
+        lastStep = now;
+    }
+    
+    /**
+     * Records that the iterator jumped to a new position. Keeps the direction
+     * but resets the speed.
+     */
+    public synchronized void jumped() {
+        velocity = 0;
+        lastStep = 0;
+    }
+    
+    /**
+     * Gets the direction of the last step.
+     * @return 1 for forwards, -1 for backwards, 0 if the iterator hasn't moved.
+     */
+    public synchronized int getDirection() {
+        return direction;
+    }
+    
+    /**
+     * Gets the current scrolling speed.
+     * @return Speed in sets per second, or 0 if scrolling has stopped.
+     */
+    public synchronized double getVelocity() {
+        if(lastStep == 0 || System.nanoTime() - lastStep > IDLE_NANOS)
+            return 0;
+        return velocity;
+    }
+}
@@ -17,6 +17,7 @@ public class SingleImageIterator implements ImageIterator {
     
     private final List<Image> images;
     private int index;
+    private final ScrollTracker tracker = new ScrollTracker();
     
     /**
      * Creates a SingleImageIterator and starts it at the beginning of the list.
@@ -42,6 +43,7 @@ public class SingleImageIterator implements ImageIterator {
         if(index == this.images.size()-1)
             return false;
         index++;
+        tracker.stepped(1);
         return true;
     }
 
@@ -50,6 +52,7 @@ public class SingleImageIterator implements ImageIterator {
         if(index == 0)
             return false;
         index--;
+        tracker.stepped(-1);
         return true;
     }
 
@@ -60,6 +63,24 @@ public class SingleImageIterator implements ImageIterator {
         return set;
     }
 
+    @Override
+    public Image[] peek(int offset) {
+        int i = index + offset;
+        if(i < 0 || i >= images.size())
+            return null;
+        return new Image[] { images.get(i) };
+    }
+
+    @Override
+    public int getDirection() {
+        return tracker.getDirection();
+    }
+
+    @Override
+    public double getVelocity() {
+        return tracker.getVelocity();
+    }
+
     @Override
     public int getIndex() {
         return index;
@@ -68,5 +89,6 @@ public class SingleImageIterator implements ImageIterator {
     @Override
     public void setIndex(int index) {
         this.index = index;
+        tracker.jumped();
     }
 }
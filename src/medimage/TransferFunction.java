@@ -0,0 +1,331 @@
+/**
+ * File: TransferFunction.java
+ * Description: A lookup table mapping pixel intensities, such as a window.
+ */
+
+package medimage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps pixel intensities through precomputed lookup tables.
+ * <p>
+ * There's a 256 entry table for 8 bit samples, and a 4096 entry table for
+ * 16 bit samples, indexed by the top 12 bits. Applying a function to an
+ * image walks its DataBuffer directly for the common image types, looking
+ * up each color sample and leaving alpha alone. Functions compose, so a
+ * sequence of windows can be applied in one pass.
+ * @author col32
+ */
+public final class TransferFunction implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of entries in the 16 bit table, and the shift from a 16 bit
+     * sample to its entry.
+     */
+    private static final int WIDE_ENTRIES = 4096;
+    private static final int WIDE_SHIFT = 4;
+
+    private static final TransferFunction IDENTITY;
+    static {
+        byte[] narrow = new byte[256];
+        for(int i=0; i<256; i++)
+            narrow[i] = (byte)i;
+        short[] wide = new short[WIDE_ENTRIES];
+        for(int i=0; i<WIDE_ENTRIES; i++)
+            wide[i] = (short)(i << WIDE_SHIFT | i >>> (12 - WIDE_SHIFT));
+        IDENTITY = new TransferFunction(narrow, wide, true);
+    }
+
+    /** Output for each 8 bit sample. */
+    private final byte[] narrow;
+    /** Output for each 16 bit sample, by its top 12 bits. */
+    private final short[] wide;
+    /** Whether this is the identity. */
+    private final boolean identity;
+
+    /**
+     * Creates a function from its tables.
+     * @param narrow 8 bit table.
+     * @param wide 16 bit table.
+     */
+    private TransferFunction(byte[] narrow, short[] wide) {
+        this(narrow, wide, Arrays.equals(narrow, IDENTITY.narrow) && Arrays.equals(wide, IDENTITY.wide));
+    }
+
+    /**
+     * Creates a function from its tables.
+     * @param narrow 8 bit table.
+     * @param wide 16 bit table.
+     * @param identity Whether the tables are the identity's.
+     */
+    private TransferFunction(byte[] narrow, short[] wide, boolean identity) {
+        this.narrow = narrow;
+        this.wide = wide;
+        this.identity = identity;
+    }
+
+    /**
+     * Gets the function that leaves samples unchanged.
+     * @return Identity function.
+     */
+    public static TransferFunction identity() {
+        return IDENTITY;
+    }
+
+    /**
+     * Creates a window: intensities from lower to higher are stretched over
+     * the full range, and anything outside is clipped to black or white.
+     * If lower is above higher the ramp runs the other way and the image is
+     * inverted; if they're equal everything is black.
+     * @param lower Intensity that becomes black, 0-255.
+     * @param higher Intensity that becomes white, 0-255.
+     * @return Window function.
+     */
+    public static TransferFunction window(int lower, int higher) {
+        byte[] narrow = new byte[256];
+        short[] wide = new short[WIDE_ENTRIES];
+        if(higher == lower)
+            return new TransferFunction(narrow, wide);
+
+        double slope = 255.0/(higher-lower);
+        for(int i=0; i<256; i++)
+            narrow[i] = (byte)clamp((int)(slope*i - slope*lower), 0, 255);
+        for(int i=0; i<WIDE_ENTRIES; i++)
+            wide[i] = (short)clamp((int)Math.round(slope*(centre(i) - lower)*257), 0, 0xffff);
+        return new TransferFunction(narrow, wide);
+    }
+
+    /**
+     * Gets the intensity at the middle of a 16 bit table entry.
+     * @param entry Table entry.
+     * @return Intensity on the 0-255 scale.
+     */
+    private static double centre(int entry) {
+        return ((entry << WIDE_SHIFT) + (1 << (WIDE_SHIFT-1)))/257.0;
+    }
+
+    /**
+     * Clamps a value between two integers.
+     * @param v
+     * @param lower
+     * @param higher
+     * @return
+     */
+    private static int clamp(int v, int lower, int higher) {
+        return Math.min(Math.max(v, lower), higher);
+    }
+
+    /**
+     * Creates the function that applies this one and then another.
+     * @param next Function to apply to this one's output.
+     * @return Composed function.
+     */
+    public TransferFunction then(TransferFunction next) {
+        if(isIdentity())
+            return next;
+        if(next.isIdentity())
+            return this;
+        byte[] n = new byte[256];
+        for(int i=0; i<256; i++)
+            n[i] = next.narrow[narrow[i] & 0xff];
+        short[] w = new short[WIDE_ENTRIES];
+        for(int i=0; i<WIDE_ENTRIES; i++)
+            w[i] = next.wide[(wide[i] & 0xffff) >>> WIDE_SHIFT];
+        return new TransferFunction(n, w);
+    }
+
+    /**
+     * Checks if this function leaves samples unchanged.
+     * @return True for the identity.
+     */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    /**
+     * Maps an 8 bit sample.
+     * @param sample Sample, 0-255.
+     * @return Mapped sample.
+     */
+    public int map(int sample) {
+        return narrow[sample] & 0xff;
+    }
+
+    /**
+     * Maps a 16 bit sample.
+     * @param sample Sample, 0-65535.
+     * @return Mapped sample.
+     */
+    public int mapWide(int sample) {
+        return wide[sample >>> WIDE_SHIFT] & 0xffff;
+    }
+
+    /**
+     * Applies the function to a copy of an image.
+     * @param src Image.
+     * @return New image of the same type, with the color samples mapped.
+     */
+    public BufferedImage apply(BufferedImage src) {
+        WritableRaster raster = src.getRaster().createCompatibleWritableRaster();
+        BufferedImage dest = new BufferedImage(src.getColorModel(), raster,
+                src.isAlphaPremultiplied(), null);
+        apply(src, dest);
+        return dest;
+    }
+
+    /**
+     * Applies the function to an image, writing the result to another.
+     * @param src Image.
+     * @param dest Image of the same type and size as src; may be src itself.
+     */
+    public void apply(BufferedImage src, BufferedImage dest) {
+        if(identity) {
+            if(src != dest)
+                dest.setData(src.getRaster());
+            return;
+        }
+        
+        Raster in = src.getRaster();
+        WritableRaster out = dest.getRaster();
+        DataBuffer inBuf = in.getDataBuffer();
+        DataBuffer outBuf = out.getDataBuffer();
+        boolean direct = src.getType() == dest.getType() && src.getType() != BufferedImage.TYPE_CUSTOM &&
+                in.getParent() == null && out.getParent() == null &&
+                inBuf.getNumBanks() == 1 && outBuf.getNumBanks() == 1 &&
+                inBuf.getSize() == outBuf.getSize() &&
+                in.getSampleModel().equals(out.getSampleModel());
+
+        if(direct && inBuf instanceof DataBufferByte && in.getSampleModel() instanceof ComponentSampleModel) {
+            // Gray and interleaved byte images. Samples at the alpha band's
+            // offset are copied unchanged.
+            byte[] s = ((DataBufferByte)inBuf).getData();
+            byte[] d = ((DataBufferByte)outBuf).getData();
+            ComponentSampleModel sm = (ComponentSampleModel)in.getSampleModel();
+            int pixel = sm.getPixelStride();
+            int[] offsets = sm.getBandOffsets();
+            int colorBands = src.getColorModel().getNumColorComponents();
+            if(colorBands == offsets.length) {
+                for(int i=0; i<s.length; i++)
+                    d[i] = narrow[s[i] & 0xff];
+                return;
+            }
+            boolean[] mapped = new boolean[pixel];
+            for(int b=0; b<colorBands; b++)
+                mapped[offsets[b] % pixel] = true;
+            for(int i=0; i + pixel <= s.length; i += pixel)
+                for(int k=0; k<pixel; k++)
+                    d[i+k] = mapped[k] ? narrow[s[i+k] & 0xff] : s[i+k];
+            return;
+        }
+        if(direct && inBuf instanceof DataBufferUShort && in.getNumBands() == 1) {
+            short[] s = ((DataBufferUShort)inBuf).getData();
+            short[] d = ((DataBufferUShort)outBuf).getData();
+            for(int i=0; i<s.length; i++)
+                d[i] = wide[(s[i] & 0xffff) >>> WIDE_SHIFT];
+            return;
+        }
+        if(direct && inBuf instanceof DataBufferInt && src.getColorModel() instanceof DirectColorModel &&
+                isPacked8Bit((DirectColorModel)src.getColorModel())) {
+            // INT_RGB, INT_ARGB and INT_BGR; alpha stays in the top byte.
+            int[] s = ((DataBufferInt)inBuf).getData();
+            int[] d = ((DataBufferInt)outBuf).getData();
+            for(int i=0; i<s.length; i++) {
+                int c = s[i];
+                d[i] = (c & 0xff000000) |
+                        (narrow[(c >> 16) & 0xff] & 0xff) << 16 |
+                        (narrow[(c >> 8) & 0xff] & 0xff) << 8 |
+                        (narrow[c & 0xff] & 0xff);
+            }
+            return;
+        }
+
+        // Anything else; go through ARGB a row at a time.
+        int w = src.getWidth();
+        int[] row = new int[w];
+        for(int y=0; y<src.getHeight(); y++) {
+            src.getRGB(0, y, w, 1, row, 0, w);
+            for(int x=0; x<w; x++) {
+                int c = row[x];
+                row[x] = (c & 0xff000000) |
+                        (narrow[(c >> 16) & 0xff] & 0xff) << 16 |
+                        (narrow[(c >> 8) & 0xff] & 0xff) << 8 |
+                        (narrow[c & 0xff] & 0xff);
+            }
+            dest.setRGB(0, y, w, 1, row, 0, w);
+        }
+    }
+
+    /**
+     * Writes the function's tables.
+     * @param out Output.
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.write(narrow);
+        for(short s : wide)
+            out.writeShort(s);
+    }
+
+    /**
+     * Reads a function written with writeTo.
+     * @param in Input.
+     * @return Function.
+     * @throws IOException
+     */
+    public static TransferFunction readFrom(DataInput in) throws IOException {
+        byte[] n = new byte[256];
+        in.readFully(n);
+        short[] w = new short[WIDE_ENTRIES];
+        for(int i=0; i<WIDE_ENTRIES; i++)
+            w[i] = in.readShort();
+        return new TransferFunction(n, w);
+    }
+
+    /**
+     * Checks that a color model packs 8 bit channels into the low three
+     * bytes, in any order, with alpha (if any) in the top byte.
+     * @param cm Color model.
+     * @return True if so.
+     */
+    private static boolean isPacked8Bit(DirectColorModel cm) {
+        int[] masks = { cm.getRedMask(), cm.getGreenMask(), cm.getBlueMask() };
+        int all = 0;
+        for(int m : masks) {
+            if(m != 0xff && m != 0xff00 && m != 0xff0000)
+                return false;
+            all |= m;
+        }
+        return all == 0xffffff && (cm.getAlphaMask() == 0 || cm.getAlphaMask() == 0xff000000);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31*Arrays.hashCode(narrow) + Arrays.hashCode(wide);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj)
+            return true;
+        if(!(obj instanceof TransferFunction))
+            return false;
+        TransferFunction other = (TransferFunction)obj;
+        return Arrays.equals(narrow, other.narrow) && Arrays.equals(wide, other.wide);
+    }
+}
@@ -5,7 +5,10 @@
 
 package medimage.models;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents a data source, which is either a local filesystem or a remote
@@ -21,11 +24,46 @@ public abstract class Connection {
     public abstract List<Study> getStudies();
     
     /**
-     * Copies a study through the connection.
+     * Adds a listener that is notified when studies are added to or removed
+     * from the connection.
+     * @param l Listener.
+     */
+    public abstract void addStudiesListener(StudiesListener l);
+    
+    /**
+     * Removes a listener added with addStudiesListener.
+     * @param l Listener.
+     */
+    public abstract void removeStudiesListener(StudiesListener l);
+    
+    /**
+     * Copies a study through the connection. Errors are logged.
+     * @param newName Name of the destination study to create.
+     * @param study The source study.
+     */
+    public void copyStudyInto(String newName, Study study) {
+        try {
+            copyStudyInto(newName, study, null);
+        } catch (IOException ex) {
+            // Can't do anything about this.
+            Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Copies a study through the connection. If a study with the same name
+     * exists, it is only replaced once the copy has fully succeeded.
      * @param newName Name of the destination study to create.
      * @param study The source study.
+     * @param progress Receives progress updates and can cancel the copy, or
+     * null.
+     * @throws IOException If the copy failed. The destination is left as it
+     * was.
+     * @throws java.util.concurrent.CancellationException If the copy was
+     * cancelled. The destination is left as it was.
      */
-    public abstract void copyStudyInto(String newName, Study study);
+    public abstract void copyStudyInto(String newName, Study study, CopyProgress progress)
+            throws IOException;
     
     /**
      * Gets the study to open when the application starts.
@@ -0,0 +1,29 @@
+/**
+ * File: CopyProgress.java
+ * Description: Interface for following the progress of a study copy.
+ */
+
+package medimage.models;
+
+/**
+ * Receives progress updates from Connection.copyStudyInto, and tells it
+ * whether to stop. Both methods may be called from worker threads.
+ * @author col32
+ */
+public interface CopyProgress {
+    
+    /**
+     * Called each time an image has been copied.
+     * @param bytesDone Bytes written so far.
+     * @param bytesTotal Estimated total number of bytes to write.
+     * @param filesDone Images written so far.
+     * @param filesTotal Total number of images.
+     */
+    public abstract void progress(long bytesDone, long bytesTotal, int filesDone, int filesTotal);
+    
+    /**
+     * Checks whether the copy should be abandoned.
+     * @return True to cancel the copy.
+     */
+    public abstract boolean isCancelled();
+}
@@ -0,0 +1,493 @@
+/**
+ * File: DisplayJournal.java
+ * Description: An append-only log of a study's display state changes, for autosave and crash recovery.
+ */
+
+package medimage.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import medimage.Command;
+import medimage.TransferFunction;
+
+/**
+ * Journal of the changes made to a study's display state while it's viewed.
+ * <p>
+ * The journal starts with the display state the study was opened at, and
+ * each command that's added or undone appends a small record to it, so
+ * saving costs the same however long the command list is. Records are
+ * buffered and synced to disk in batches, at most SYNC_DELAY_MS after they're
+ * added. Every COMPACT_RECORDS records, the journal is rewritten in the
+ * background to start from the current state.
+ * <p>
+ * The journal is only for crash recovery; it never writes the study's saved
+ * display state. When the study is closed normally the journal is deleted,
+ * and the user decides whether the state is saved. If the program stops
+ * without closing the journal, the next call to recover rebuilds the state
+ * from the records that made it to disk. Each record is checksummed, so a
+ * record that was only partly written is ignored along with anything after
+ * it.
+ * <p>
+ * Journaling can be turned off by setting the <code>medimage.autosave</code>
+ * system property to false.
+ * @author col32
+ */
+public class DisplayJournal {
+
+    private static final int MAGIC = 0x4d49444a; // "MIDJ"
+    private static final int VERSION = 1;
+
+    /** Record holding a whole display state; always the first record. */
+    private static final int BASE = 1;
+    /** Record holding a command added to the end of the list. */
+    private static final int ADD = 2;
+    /** Record removing the last command in the list. */
+    private static final int REMOVE = 3;
+    /** Record holding the display mode and image index. */
+    private static final int VIEW = 4;
+
+    /**
+     * Largest record length that's believed when recovering.
+     */
+    private static final int MAX_RECORD = 64 << 20;
+
+    /**
+     * Longest time a record waits before it's synced to disk.
+     */
+    private static final long SYNC_DELAY_MS = 200;
+
+    /**
+     * Number of records after which the journal should be compacted.
+     */
+    private static final int COMPACT_RECORDS = 256;
+
+    /**
+     * Syncs and compacts journals. Everything that touches the files runs
+     * here, in order.
+     */
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "medimage-journal");
+            t.setDaemon(true); // Don't keep the application open.
+            return t;
+        }
+    });
+
+    /**
+     * Gets whether journaling should be used.
+     * @return True unless disabled with the medimage.autosave property.
+     */
+    public static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty("medimage.autosave"));
+    }
+
+    /**
+     * Journal files that are open, which mustn't be recovered from.
+     */
+    private static final Set<File> openFiles = Collections.synchronizedSet(new HashSet<File>());
+
+    /**
+     * Checks whether a journal file is open in this program, so it holds the
+     * live session rather than one that needs recovering.
+     * @param file Journal file.
+     * @return True if a journal has begun writing it and not been closed.
+     */
+    public static boolean isOpen(File file) {
+        return openFiles.contains(file.getAbsoluteFile());
+    }
+
+    private final File file;
+
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    /** Number of records since the base state. */
+    private int records;
+    private boolean syncScheduled;
+    private boolean compacting;
+    private boolean closed;
+    /**
+     * Records added since the pending compaction's state was taken, which
+     * have to be carried into the compacted journal.
+     */
+    private final List<byte[]> tail = new ArrayList<byte[]>();
+
+    /**
+     * Creates a journal. Nothing is written until begin is called.
+     * @param file Journal file.
+     */
+    public DisplayJournal(File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * Starts the journal from a display state, replacing any old journal.
+     * @param state The state the study is being viewed at.
+     */
+    public synchronized void begin(DisplayState state) {
+        openFiles.add(file);
+        try {
+            rewrite(state, new ArrayList<byte[]>(0));
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+            closed = true;
+        }
+    }
+
+    /**
+     * Records a command added to the end of the display state's commands.
+     * @param c Command.
+     */
+    public void add(Command c) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DisplayStateCodec.writeTaggedCommand(c, new DataOutputStream(bytes));
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+            return;
+        }
+        append(ADD, bytes.toByteArray());
+    }
+
+    /**
+     * Records the last of the display state's commands being removed.
+     */
+    public void removeLast() {
+        append(REMOVE, new byte[0]);
+    }
+
+    /**
+     * Records a change of display mode or image.
+     * @param mode Display mode.
+     * @param index Index of the image being displayed.
+     */
+    public void view(DisplayState.States mode, int index) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeUTF(mode.name());
+            data.writeInt(index);
+        } catch (IOException ex) {
+            throw new AssertionError(ex); // Can't happen writing to memory.
+        }
+        append(VIEW, bytes.toByteArray());
+    }
+
+    /**
+     * Checks whether the journal has grown enough to be compacted.
+     * @return True if compact should be called.
+     */
+    public synchronized boolean needsCompaction() {
+        return !closed && !compacting && records >= COMPACT_RECORDS;
+    }
+
+    /**
+     * Restarts the journal from a display state, in the background. Records
+     * added after this call are kept.
+     * @param state The current display state, with the commands exactly as
+     * the journal has recorded them.
+     */
+    public synchronized void compact(final DisplayState state) {
+        if(closed || compacting)
+            return;
+        compacting = true;
+        tail.clear();
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(DisplayJournal.this) {
+                    try {
+                        if(!closed)
+                            rewrite(state, tail);
+                    } catch (IOException ex) {
+                        Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+                    } finally {
+                        tail.clear();
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the journal and deletes it, once any pending writes are done.
+     * The display state isn't saved; that's up to the caller.
+     */
+    public void close() {
+        Future<?> done = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(DisplayJournal.this) {
+                    closed = true;
+                    closeStream();
+                    file.delete();
+                    openFiles.remove(file);
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex.getCause());
+        }
+    }
+
+    /**
+     * Appends a record and schedules a sync.
+     * @param type Record type.
+     * @param payload Record contents.
+     */
+    private synchronized void append(int type, byte[] payload) {
+        if(closed || out == null)
+            return;
+        try {
+            writeRecord(out, type, payload);
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+            closed = true;
+            closeStream();
+            return;
+        }
+        records++;
+        if(compacting)
+            tail.add(frame(type, payload));
+
+        if(!syncScheduled) {
+            syncScheduled = true;
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            }, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flushes the buffered records and syncs them to disk. Runs on the
+     * writer thread, so the file can't be swapped out during the sync.
+     */
+    private void sync() {
+        FileDescriptor fd;
+        synchronized(this) {
+            syncScheduled = false;
+            if(closed || out == null)
+                return;
+            try {
+                out.flush();
+                fd = fos.getFD();
+            } catch (IOException ex) {
+                Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+                return;
+            }
+        }
+        try {
+            fd.sync();
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Replaces the journal file with one holding a base state and some
+     * records, and opens it for appending.
+     * @param state Base state.
+     * @param framed Records to follow the base, as returned by frame.
+     * @throws IOException
+     */
+    private void rewrite(DisplayState state, List<byte[]> framed) throws IOException {
+        ByteArrayOutputStream base = new ByteArrayOutputStream();
+        DisplayStateCodec.write(state, new DataOutputStream(base));
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream tmpStream = new FileOutputStream(tmp);
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tmpStream));
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                writeRecord(data, BASE, base.toByteArray());
+                for(byte[] r : framed)
+                    data.write(r);
+                data.flush();
+                tmpStream.getFD().sync();
+            } finally {
+                tmpStream.close();
+            }
+            closeStream();
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete(); // No-op if it was moved.
+        }
+
+        fos = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        records = framed.size();
+    }
+
+    /**
+     * Closes the file being appended to, if it's open.
+     */
+    private void closeStream() {
+        if(out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+        out = null;
+        fos = null;
+    }
+
+    /**
+     * Encodes a record with its header.
+     * @param type Record type.
+     * @param payload Record contents.
+     * @return Record bytes.
+     */
+    private static byte[] frame(int type, byte[] payload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 9);
+        try {
+            writeRecord(new DataOutputStream(bytes), type, payload);
+        } catch (IOException ex) {
+            throw new AssertionError(ex); // Can't happen writing to memory.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a record: its type, length, checksum and contents.
+     * @param out Output.
+     * @param type Record type.
+     * @param payload Record contents.
+     * @throws IOException
+     */
+    private static void writeRecord(DataOutputStream out, int type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.writeInt((int)crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Rebuilds a display state from a journal left behind by a session that
+     * wasn't closed.
+     * @param file Journal file.
+     * @return The last state recorded, or null if there's no usable journal.
+     */
+    public static DisplayState recover(File file) {
+        if(!file.isFile())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                byte[] base = readRecord(in, BASE);
+                if(base == null)
+                    return null;
+                DisplayState state = DisplayStateCodec.read(new DataInputStream(new ByteArrayInputStream(base)));
+
+                DisplayState.States mode = state.getCurrState();
+                int index = state.getImageIndex();
+                List<Command> commands = new ArrayList<Command>(state.getCommands());
+                while(true) {
+                    in.mark(1);
+                    int type = in.read();
+                    if(type < 0)
+                        break;
+                    in.reset();
+                    byte[] payload = readRecord(in, type);
+                    if(payload == null)
+                        break; // Torn or corrupt; nothing after it can be trusted.
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+                    if(type == ADD) {
+                        commands.add(DisplayStateCodec.readTaggedCommand(data));
+                    } else if(type == REMOVE) {
+                        if(!commands.isEmpty())
+                            commands.remove(commands.size()-1);
+                    } else if(type == VIEW) {
+                        mode = DisplayState.States.valueOf(data.readUTF());
+                        index = data.readInt();
+                    } else
+                        break;
+                }
+
+                // The saved transform is only used while the commands still
+                // match the ones it was saved with.
+                TransferFunction f = state.getDisplayTransform();
+                if(f == null)
+                    return new DisplayState(mode, index, commands);
+                return new DisplayState(mode, index, commands, f, state.getCommandsHash());
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(DisplayJournal.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a record.
+     * @param in Input, at the start of a record.
+     * @param expected Type the record must have.
+     * @return Record contents, or null if the record is cut short, has the
+     * wrong type or fails its checksum.
+     * @throws IOException
+     */
+    private static byte[] readRecord(DataInputStream in, int expected) throws IOException {
+        try {
+            int type = in.readUnsignedByte();
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if(type != expected || length < 0 || length > MAX_RECORD)
+                return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            return (int)crc.getValue() == checksum ? payload : null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+}
@@ -6,12 +6,24 @@
 
 package medimage.models;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import medimage.Command;
+import medimage.TransferFunction;
 
 /**
  * A plain-data object used to serialize what view and image to open a study
@@ -52,6 +64,21 @@ public class DisplayState implements Serializable {
      * This consists only of commands that modify images.
      */
     private final List<Command> commands;
+    
+    /**
+     * The display transform that results from applying the commands, so they
+     * don't need to be replayed to show the study. May be null.
+     *
+     * @serial
+     */
+    private final TransferFunction displayTransform;
+    
+    /**
+     * Hash of the commands that displayTransform was computed from.
+     *
+     * @serial
+     */
+    private final int commandsHash;
 
     /**
      * Constructor for DisplayState
@@ -61,9 +88,43 @@ public class DisplayState implements Serializable {
      * @param commands List of commands to execute when loading the display state.
      */
     public DisplayState(States currState, int imgIndex, List<Command> commands) {
+        this(currState, imgIndex, commands, null);
+    }
+
+    /**
+     * Constructor for DisplayState
+     *
+     * @param currState Current display mode
+     * @param imgIndex Current image index.
+     * @param commands List of commands to execute when loading the display state.
+     * @param displayTransform Display transform that the commands result in,
+     * or null to always replay them.
+     */
+    public DisplayState(States currState, int imgIndex, List<Command> commands,
+            TransferFunction displayTransform) {
         this.currState = currState;
         this.imageIndex = imgIndex;
         this.commands = new ArrayList<Command>(commands);
+        this.displayTransform = displayTransform;
+        this.commandsHash = this.commands.hashCode();
+    }
+
+    /**
+     * Constructor for a DisplayState read back from a file.
+     *
+     * @param currState Current display mode
+     * @param imgIndex Current image index.
+     * @param commands List of commands to execute when loading the display state.
+     * @param displayTransform Display transform that the commands resulted in.
+     * @param commandsHash Hash of the commands the transform was saved with.
+     */
+    DisplayState(States currState, int imgIndex, List<Command> commands,
+            TransferFunction displayTransform, int commandsHash) {
+        this.currState = currState;
+        this.imageIndex = imgIndex;
+        this.commands = new ArrayList<Command>(commands);
+        this.displayTransform = displayTransform;
+        this.commandsHash = commandsHash;
     }
 
     /**
@@ -92,6 +153,25 @@ public class DisplayState implements Serializable {
         return Collections.unmodifiableList(commands);
     }
     
+    /**
+     * Gets the display transform saved with the commands.
+     * @return Transform that applying the commands results in, or null if
+     * there isn't one or it doesn't match the commands.
+     */
+    public TransferFunction getDisplayTransform() {
+        if(displayTransform == null || commandsHash != commands.hashCode())
+            return null;
+        return displayTransform;
+    }
+    
+    /**
+     * Gets the hash of the commands the display transform was saved with.
+     * @return Hash.
+     */
+    int getCommandsHash() {
+        return commandsHash;
+    }
+    
     /**
      * Compares display states.
      * @param other Object to compare it to.
@@ -105,20 +185,37 @@ public class DisplayState implements Serializable {
     }
     
     /**
-     * Writes the object to a file.
+     * Writes the object to a file, in the DisplayStateCodec format. It's
+     * written to a temporary file first and moved over the old one, so a
+     * failed write leaves the old file intact.
      *
      * @param outFile Path to the file to write to
      * @throws IOException
      */
     public void serialize(String outFile)
             throws IOException {
-        FileOutputStream fos = new FileOutputStream(outFile);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(this);
+        File dest = new File(outFile).getAbsoluteFile();
+        File tmp = File.createTempFile(dest.getName(), ".tmp", dest.getParentFile());
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                DisplayStateCodec.write(this, out);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete(); // No-op if it was moved.
+        }
     }
 
     /**
-     * Loads a DisplayState from a file serialized with the serialize method
+     * Loads a DisplayState from a file written with the serialize method, or
+     * with Java serialization by older versions.
      *
      * @param serializedObject Path to the file to read from.
      * @return The deserialized object.
@@ -128,9 +225,17 @@ public class DisplayState implements Serializable {
      */
     public static Object deSerialize(String serializedObject)
             throws FileNotFoundException, IOException, ClassNotFoundException {
-        FileInputStream fis = new FileInputStream(serializedObject);
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        return ois.readObject();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(serializedObject)));
+        try {
+            in.mark(4);
+            int magic = in.readInt();
+            in.reset();
+            if(magic == DisplayStateCodec.MAGIC)
+                return DisplayStateCodec.read(in);
+            return new ObjectInputStream(in).readObject();
+        } finally {
+            in.close();
+        }
     }
 
     @Override
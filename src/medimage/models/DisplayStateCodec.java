@@ -0,0 +1,240 @@
+/**
+ * File: DisplayStateCodec.java
+ * Description: Reads and writes display states in a compact binary format.
+ */
+
+package medimage.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import medimage.Command;
+import medimage.TransferFunction;
+
+/**
+ * Binary format for display states.
+ * <p>
+ * The format starts with a magic number and version, followed by the display
+ * mode, image index, commands and saved display transform. Each command is
+ * written as a tag from the command registry and a length-prefixed payload.
+ * A state holding a command this version doesn't know can't be read, since
+ * dropping the command would show a different result and lose it on the
+ * next save. Commands without a
+ * registered codec are stored with Java serialization under tag 0.
+ * <p>
+ * Codecs are registered by the code defining the commands when the
+ * program starts, so this class doesn't depend on the views.
+ * @author col32
+ */
+public class DisplayStateCodec {
+
+    /**
+     * Reads and writes the payload of one type of command.
+     * @param <T> Command type.
+     */
+    public interface CommandCodec<T extends Command> {
+
+        /**
+         * Writes a command.
+         * @param command Command.
+         * @param out Output.
+         * @throws IOException
+         */
+        void write(T command, DataOutput out) throws IOException;
+
+        /**
+         * Reads a command written by write.
+         * @param in Input.
+         * @return Command.
+         * @throws IOException
+         */
+        T read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Magic number at the start of the format; "MIDS".
+     */
+    public static final int MAGIC = 0x4d494453;
+    private static final int VERSION = 1;
+
+    /**
+     * Tag for commands stored with Java serialization.
+     */
+    private static final int SERIALIZED_TAG = 0;
+
+    private static final Map<Integer, CommandCodec<?>> codecsByTag = new HashMap<Integer, CommandCodec<?>>();
+    private static final Map<Class<?>, Integer> tagsByClass = new HashMap<Class<?>, Integer>();
+
+    /**
+     * Registers the codec for a type of command. Tags are written to files,
+     * so they must never be reused for a different type.
+     * @param <T> Command type.
+     * @param tag Tag for the type; must be positive.
+     * @param type Command class. Subclasses aren't covered.
+     * @param codec Codec.
+     */
+    public static synchronized <T extends Command> void register(int tag, Class<T> type, CommandCodec<T> codec) {
+        if(tag <= SERIALIZED_TAG || tag > 0xffff)
+            throw new IllegalArgumentException("Bad command tag " + tag);
+        if(codecsByTag.containsKey(tag) || tagsByClass.containsKey(type))
+            throw new IllegalArgumentException("Command tag or type already registered: " + tag);
+        codecsByTag.put(tag, codec);
+        tagsByClass.put(type, tag);
+    }
+
+    /**
+     * Writes a display state.
+     * @param state Display state.
+     * @param out Output.
+     * @throws IOException
+     */
+    public static void write(DisplayState state, DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(state.getCurrState().name());
+        out.writeInt(state.getImageIndex());
+
+        List<Command> commands = state.getCommands();
+        out.writeInt(commands.size());
+        for(Command c : commands)
+            writeTaggedCommand(c, out);
+
+        TransferFunction f = state.getDisplayTransform();
+        out.writeBoolean(f != null);
+        if(f != null) {
+            out.writeInt(state.getCommandsHash());
+            f.writeTo(out);
+        }
+    }
+
+    /**
+     * Writes a command as its tag and length-prefixed payload.
+     * @param c Command.
+     * @param out Output.
+     * @throws IOException
+     */
+    static void writeTaggedCommand(Command c, DataOutput out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int tag = writeCommand(c, new DataOutputStream(bytes));
+        out.writeShort(tag);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    /**
+     * Reads a command written by writeTaggedCommand.
+     * @param in Input.
+     * @return Command.
+     * @throws IOException If the data is bad or the command type isn't known.
+     */
+    static Command readTaggedCommand(DataInput in) throws IOException {
+        int tag = in.readUnsignedShort();
+        int length = in.readInt();
+        if(length < 0)
+            throw new IOException("Bad command length " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return readCommand(tag, payload);
+    }
+
+    /**
+     * Writes a command's payload.
+     * @param c Command.
+     * @param out Output.
+     * @return Tag of the command's codec.
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private static int writeCommand(Command c, DataOutputStream out) throws IOException {
+        Integer tag;
+        CommandCodec<Command> codec;
+        synchronized(DisplayStateCodec.class) {
+            tag = tagsByClass.get(c.getClass());
+            codec = tag == null ? null : (CommandCodec<Command>)codecsByTag.get(tag);
+        }
+        if(codec == null) {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(c);
+            oos.flush();
+            return SERIALIZED_TAG;
+        }
+        codec.write(c, out);
+        out.flush();
+        return tag;
+    }
+
+    /**
+     * Reads a display state. The magic number must not have been read yet.
+     * @param in Input.
+     * @return Display state.
+     * @throws IOException If the data isn't a display state or is from a
+     * newer version.
+     */
+    public static DisplayState read(DataInput in) throws IOException {
+        if(in.readInt() != MAGIC)
+            throw new IOException("Not a display state");
+        int version = in.readUnsignedShort();
+        if(version > VERSION)
+            throw new IOException("Unsupported display state version " + version);
+
+        DisplayState.States mode;
+        try {
+            mode = DisplayState.States.valueOf(in.readUTF());
+        } catch(IllegalArgumentException ex) {
+            throw new IOException("Unknown display mode", ex);
+        }
+        int index = in.readInt();
+
+        int count = in.readInt();
+        if(count < 0)
+            throw new IOException("Bad command count " + count);
+        List<Command> commands = new ArrayList<Command>(Math.min(count, 1024));
+        for(int i=0; i<count; i++)
+            commands.add(readTaggedCommand(in));
+
+        if(in.readBoolean()) {
+            int hash = in.readInt();
+            TransferFunction f = TransferFunction.readFrom(in);
+            return new DisplayState(mode, index, commands, f, hash);
+        }
+        return new DisplayState(mode, index, commands);
+    }
+
+    /**
+     * Reads a command's payload.
+     * @param tag Tag of the command's codec.
+     * @param payload Payload.
+     * @return Command.
+     * @throws IOException If the payload is bad or the tag isn't known.
+     */
+    private static Command readCommand(int tag, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if(tag == SERIALIZED_TAG) {
+            try {
+                return (Command)new ObjectInputStream(in).readObject();
+            } catch (ClassNotFoundException ex) {
+                throw new IOException(ex);
+            } catch (ClassCastException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        CommandCodec<?> codec;
+        synchronized(DisplayStateCodec.class) {
+            codec = codecsByTag.get(tag);
+        }
+        if(codec == null)
+            throw new IOException("Unknown command type " + tag); // Written by a newer version.
+        return codec.read(in);
+    }
+}
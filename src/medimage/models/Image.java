@@ -25,6 +25,20 @@ public abstract class Image {
      */
     public abstract String getName();
     
+    /**
+     * Checks whether the image data has been modified, ie. whether the undo
+     * stack holds any modified images.
+     * @return True if getImageData returns a modified image.
+     */
+    public abstract boolean isModified();
+    
+    /**
+     * Gets the image's generation, which changes whenever a modification is
+     * pushed or popped.
+     * @return Generation.
+     */
+    public abstract long getGeneration();
+    
     /**
      * Pushes a modified image to the image's undo stack.
      */
@@ -0,0 +1,27 @@
+/**
+ * File: StudiesListener.java
+ * Description: Interface for objects that are notified of new and deleted
+ * studies.
+ */
+
+package medimage.models;
+
+/**
+ * Listener for changes to the list of studies of a Connection.
+ * Listeners may be called from a background thread.
+ * @author col32
+ */
+public interface StudiesListener {
+    
+    /**
+     * Called when a study is added to the connection.
+     * @param study New study.
+     */
+    public abstract void studyAdded(Study study);
+    
+    /**
+     * Called when a study is removed from the connection.
+     * @param study Removed study.
+     */
+    public abstract void studyRemoved(Study study);
+}
@@ -5,7 +5,11 @@
 
 package medimage.models;
 
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Represents a study, which is a collection of images.
@@ -26,6 +30,55 @@ public abstract class Study {
      */
     public abstract List<Image> getImages();
     
+    /**
+     * Starts loading the data of every image in the study in the background.
+     * @return One future per image, in the same order as getImages().
+     */
+    public List<Future<BufferedImage>> loadImages() {
+        return loadImages(null);
+    }
+    
+    /**
+     * Starts loading the data of every image in the study in the background,
+     * starting the images in a given order. Images earlier in the order are
+     * started first, so they tend to finish first.
+     * @param order Indices into getImages(), in the order to load them, or
+     * null for list order. Must list every image once.
+     * @return One future per image, in the same order as getImages().
+     */
+    public abstract List<Future<BufferedImage>> loadImages(int[] order);
+    
+    /**
+     * Gets the physical size of the study's voxels: the distance between
+     * pixel centres along the image columns and rows, and between slices.
+     * @return Spacing in mm along x, y and z, or null if it isn't known.
+     */
+    public double[] getVoxelSpacing() {
+        return null;
+    }
+    
+    /**
+     * Gets the data of every image in the study, waiting for the images to
+     * load if needed.
+     * @return Image data, in the same order as getImages().
+     */
+    public List<BufferedImage> getAllImageData() {
+        List<Future<BufferedImage>> futures = loadImages();
+        List<BufferedImage> data = new ArrayList<BufferedImage>(futures.size());
+        try {
+            for(Future<BufferedImage> f : futures)
+                data.add(f.get());
+        } catch (InterruptedException ex) {
+            for(Future<BufferedImage> f : futures)
+                f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading images.", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Couldn't load image.", ex.getCause());
+        }
+        return data;
+    }
+    
     /**
      * Gets the list of sub-studies that this study contains. Studies should be
      * ordered.
@@ -45,6 +98,14 @@ public abstract class Study {
      */
     public abstract void saveDisplayState(DisplayState state);
     
+    /**
+     * Opens a journal to record display state changes in as they're made.
+     * @return Journal, or null if the study doesn't keep one.
+     */
+    public DisplayJournal openJournal() {
+        return null;
+    }
+    
     @Override
     public String toString() {
         return getName();
@@ -0,0 +1,337 @@
+/**
+ * File: Volume.java
+ * Description: A 3D block of grayscale voxels built from the images of a study.
+ */
+
+package medimage.models;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.util.List;
+
+/**
+ * Grayscale volume data, stored as unsigned 16 bit samples in one flat array.
+ * <p>
+ * Voxel (x, y, z) is at <code>offset + x*stride[0] + y*stride[1] +
+ * z*stride[2]</code>. Volumes built from a study have x going along the image
+ * columns, y along the image rows and z along the slices. The permute and
+ * flip methods return volumes that share the same samples but address them
+ * along different axes, so reorienting a volume doesn't copy it.
+ * <p>
+ * Samples always use the full 16 bit range, whatever the bit depth of the
+ * source images; 8 bit displays can use the high byte.
+ * <p>
+ * Each axis also has a voxel spacing, the physical distance between voxel
+ * centres along it, so that views can show the volume in proportion. Volumes
+ * whose spacing isn't known have cubic voxels of size 1.
+ * @author col32
+ */
+public class Volume {
+    
+    /**
+     * Axis indices.
+     */
+    public static final int X = 0, Y = 1, Z = 2;
+    
+    private final short[] data;
+    private final int[] size;
+    private final int[] stride;
+    private final int offset;
+    private final double[] spacing;
+    
+    /**
+     * Creates a volume view over existing samples, with cubic voxels.
+     * @param data Samples.
+     * @param size Number of voxels along each axis.
+     * @param stride Distance in the array between neighbours along each axis.
+     * @param offset Index of voxel (0, 0, 0).
+     */
+    public Volume(short[] data, int[] size, int[] stride, int offset) {
+        this(data, size, stride, offset, new double[] { 1, 1, 1 });
+    }
+    
+    /**
+     * Creates a volume view over existing samples.
+     * @param data Samples.
+     * @param size Number of voxels along each axis.
+     * @param stride Distance in the array between neighbours along each axis.
+     * @param offset Index of voxel (0, 0, 0).
+     * @param spacing Distance between voxel centres along each axis, in mm.
+     */
+    public Volume(short[] data, int[] size, int[] stride, int offset, double[] spacing) {
+        this.data = data;
+        this.size = size.clone();
+        this.stride = stride.clone();
+        this.offset = offset;
+        this.spacing = spacing.clone();
+    }
+    
+    /**
+     * Creates an empty volume, with the x axis varying fastest in memory and
+     * the z axis slowest.
+     * @param sizeX Size along x.
+     * @param sizeY Size along y.
+     * @param sizeZ Size along z.
+     */
+    public Volume(int sizeX, int sizeY, int sizeZ) {
+        this(new short[sizeX*sizeY*sizeZ], new int[] { sizeX, sizeY, sizeZ },
+                new int[] { 1, sizeX, sizeX*sizeY }, 0);
+    }
+    
+    /**
+     * Builds a volume from the images of a study. The images are loaded in
+     * parallel.
+     * @param study Study.
+     * @return Volume, with one z slice per image.
+     */
+    public static Volume fromStudy(Study study) {
+        Volume v = fromImages(study.getAllImageData());
+        double[] spacing = study.getVoxelSpacing();
+        return spacing == null ? v : v.withSpacing(spacing);
+    }
+    
+    /**
+     * Builds a volume from a list of images. The volume takes the width and
+     * height of the first image; larger images are cropped and smaller ones
+     * padded with zeros.
+     * @param images Images, one per z slice.
+     * @return Volume.
+     */
+    public static Volume fromImages(List<BufferedImage> images) {
+        BufferedImage first = images.get(0);
+        Volume v = new Volume(first.getWidth(), first.getHeight(), images.size());
+        for(int z=0; z<images.size(); z++)
+            v.setSlice(z, images.get(z));
+        return v;
+    }
+    
+    /**
+     * Copies an image into a z slice of the volume. Color images are
+     * converted to their luminance.
+     * @param z Slice index.
+     * @param img Image, or null to leave the slice empty.
+     */
+    public void setSlice(int z, BufferedImage img) {
+        if(img == null)
+            return;
+        int w = Math.min(img.getWidth(), size[X]);
+        int h = Math.min(img.getHeight(), size[Y]);
+        Raster raster = img.getRaster();
+        DataBuffer buf = raster.getDataBuffer();
+        
+        if(stride[X] == 1 && raster.getParent() == null &&
+                raster.getSampleModel() instanceof ComponentSampleModel) {
+            ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+            int scan = sm.getScanlineStride();
+            int pixel = sm.getPixelStride();
+            int[] bands = sm.getBandOffsets();
+            
+            if(buf instanceof DataBufferUShort && bands.length == 1 && buf.getNumBanks() == 1) {
+                // 16 bit gray; straight copy.
+                short[] src = ((DataBufferUShort)buf).getData();
+                for(int y=0; y<h; y++)
+                    System.arraycopy(src, y*scan + bands[0], data, index(0, y, z), w);
+                return;
+            }
+            if(buf instanceof DataBufferByte && bands.length == 1 && buf.getNumBanks() == 1) {
+                // 8 bit gray; scale to 16 bits.
+                byte[] src = ((DataBufferByte)buf).getData();
+                for(int y=0; y<h; y++) {
+                    int s = y*scan + bands[0];
+                    int d = index(0, y, z);
+                    for(int x=0; x<w; x++, s += pixel)
+                        data[d+x] = (short)((src[s] & 0xff)*257);
+                }
+                return;
+            }
+            if(buf instanceof DataBufferByte && bands.length >= 3 && buf.getNumBanks() == 1 &&
+                    img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                // Decoded JPEGs; bands are R, G, B.
+                byte[] src = ((DataBufferByte)buf).getData();
+                for(int y=0; y<h; y++) {
+                    int s = y*scan;
+                    int d = index(0, y, z);
+                    for(int x=0; x<w; x++, s += pixel)
+                        data[d+x] = (short)(luminance(src[s + bands[0]] & 0xff,
+                                src[s + bands[1]] & 0xff, src[s + bands[2]] & 0xff)*257);
+                }
+                return;
+            }
+        }
+        
+        // Anything else; go through ARGB a row at a time.
+        int[] row = new int[w];
+        for(int y=0; y<h; y++) {
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for(int x=0; x<w; x++) {
+                int c = row[x];
+                data[index(x, y, z)] = (short)(luminance((c >> 16) & 0xff, (c >> 8) & 0xff, c & 0xff)*257);
+            }
+        }
+    }
+    
+    /**
+     * Copies one z slice of the volume over another.
+     * @param fromZ Slice to copy.
+     * @param toZ Slice to overwrite.
+     */
+    public void copySlice(int fromZ, int toZ) {
+        if(fromZ == toZ)
+            return;
+        if(stride[X] == 1) {
+            for(int y=0; y<size[Y]; y++)
+                System.arraycopy(data, index(0, y, fromZ), data, index(0, y, toZ), size[X]);
+        } else {
+            for(int y=0; y<size[Y]; y++)
+                for(int x=0; x<size[X]; x++)
+                    data[index(x, y, toZ)] = data[index(x, y, fromZ)];
+        }
+    }
+    
+    /**
+     * Copies a z slice of another volume over a slice of this one. Only the
+     * part covered by both volumes is copied.
+     * @param toZ Slice to overwrite.
+     * @param src Volume to copy from.
+     * @param fromZ Slice of src to copy.
+     */
+    public void copySlice(int toZ, Volume src, int fromZ) {
+        int w = Math.min(size[X], src.size[X]);
+        int h = Math.min(size[Y], src.size[Y]);
+        if(stride[X] == 1 && src.stride[X] == 1) {
+            for(int y=0; y<h; y++)
+                System.arraycopy(src.data, src.index(0, y, fromZ), data, index(0, y, toZ), w);
+        } else {
+            for(int y=0; y<h; y++)
+                for(int x=0; x<w; x++)
+                    data[index(x, y, toZ)] = src.data[src.index(x, y, fromZ)];
+        }
+    }
+    
+    /**
+     * Computes the luminance of a color.
+     * @param r Red, 0-255.
+     * @param g Green, 0-255.
+     * @param b Blue, 0-255.
+     * @return Luminance, 0-255.
+     */
+    private static int luminance(int r, int g, int b) {
+        return (r*77 + g*150 + b*29) >> 8;
+    }
+    
+    /**
+     * Gets the number of voxels along an axis.
+     * @param axis X, Y or Z.
+     * @return Size.
+     */
+    public int getSize(int axis) {
+        return size[axis];
+    }
+    
+    /**
+     * Gets the distance in the sample array between neighbouring voxels
+     * along an axis.
+     * @param axis X, Y or Z.
+     * @return Stride, which may be negative.
+     */
+    public int getStride(int axis) {
+        return stride[axis];
+    }
+    
+    /**
+     * Gets the distance between voxel centres along an axis.
+     * @param axis X, Y or Z.
+     * @return Spacing, in mm.
+     */
+    public double getSpacing(int axis) {
+        return spacing[axis];
+    }
+    
+    /**
+     * Gets the physical length of the volume along an axis.
+     * @param axis X, Y or Z.
+     * @return Size times spacing, in mm.
+     */
+    public double getExtent(int axis) {
+        return size[axis]*spacing[axis];
+    }
+    
+    /**
+     * Returns a volume with a different voxel spacing.
+     * @param spacing Distance between voxel centres along each axis, in mm.
+     * @return Volume sharing the same samples.
+     */
+    public Volume withSpacing(double[] spacing) {
+        return new Volume(data, size, stride, offset, spacing);
+    }
+    
+    /**
+     * Gets the index of voxel (0, 0, 0) in the sample array.
+     * @return Offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Gets the sample array. Changes to it are visible in all volumes
+     * sharing it.
+     * @return Samples.
+     */
+    public short[] getData() {
+        return data;
+    }
+    
+    /**
+     * Gets the index of a voxel in the sample array.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param z Z coordinate.
+     * @return Index.
+     */
+    public int index(int x, int y, int z) {
+        return offset + x*stride[X] + y*stride[Y] + z*stride[Z];
+    }
+    
+    /**
+     * Gets a voxel.
+     * @param x X coordinate.
+     * @param y Y coordinate.
+     * @param z Z coordinate.
+     * @return Sample, 0-65535.
+     */
+    public int get(int x, int y, int z) {
+        return data[index(x, y, z)] & 0xffff;
+    }
+    
+    /**
+     * Returns a volume with its axes reordered. For example, permute(Z, X, Y)
+     * returns a volume whose x axis is this volume's z axis.
+     * @param newX Axis of this volume to use as the new x axis.
+     * @param newY Axis of this volume to use as the new y axis.
+     * @param newZ Axis of this volume to use as the new z axis.
+     * @return Volume sharing the same samples.
+     */
+    public Volume permute(int newX, int newY, int newZ) {
+        return new Volume(data,
+                new int[] { size[newX], size[newY], size[newZ] },
+                new int[] { stride[newX], stride[newY], stride[newZ] },
+                offset,
+                new double[] { spacing[newX], spacing[newY], spacing[newZ] });
+    }
+    
+    /**
+     * Returns a volume mirrored along an axis.
+     * @param axis X, Y or Z.
+     * @return Volume sharing the same samples.
+     */
+    public Volume flip(int axis) {
+        int[] newStride = stride.clone();
+        newStride[axis] = -stride[axis];
+        return new Volume(data, size, newStride, offset + (size[axis]-1)*stride[axis], spacing);
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * File: AcrReader.java
+ * Description: Reads ACR-NEMA image files.
+ */
+
+package medimage.models.local;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for ACR-NEMA files.
+ * The file is memory mapped, the image dimensions and pixel data offset are
+ * read from the header elements, and the samples are copied in bulk into the
+ * raster of the resulting image.
+ * <p>
+ * Pixel data is read as big-endian words with the significant bits in the
+ * high end of the word, which is the layout of the studies we have. Files
+ * whose header can't be parsed are read as a 256x256 slice at the end of the
+ * file.
+ * @author col32
+ */
+public class AcrReader {
+    
+    // Header elements, as (group << 16 | element)
+    private static final int TAG_ROWS           = 0x00280010;
+    private static final int TAG_COLUMNS        = 0x00280011;
+    private static final int TAG_BITS_ALLOCATED = 0x00280100;
+    private static final int TAG_BITS_STORED    = 0x00280101;
+    private static final int TAG_PIXEL_DATA     = 0x7fe00010;
+    private static final int TAG_SLICE_THICKNESS = 0x00180050;
+    private static final int TAG_SLICE_SPACING  = 0x00180088;
+    private static final int TAG_PIXEL_SPACING  = 0x00280030;
+    
+    // Used when the header doesn't specify the dimensions.
+    private static final int DEFAULT_SIZE = 256;
+    
+    private int rows = -1;
+    private int columns = -1;
+    private int bitsAllocated = 16;
+    private int bitsStored = 12;
+    private long pixelOffset = -1;
+    private double rowSpacing = -1;
+    private double columnSpacing = -1;
+    private double sliceThickness = -1;
+    private double sliceSpacing = -1;
+    
+    private AcrReader() {
+    }
+    
+    /**
+     * Reads an ACR file.
+     * @param f File to read.
+     * @return The image, as a TYPE_USHORT_GRAY image, or TYPE_BYTE_GRAY for
+     * files with 8 bits per sample.
+     * @throws IOException If the file can't be read or is too short for the
+     * image it describes.
+     */
+    public static BufferedImage read(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            AcrReader reader = new AcrReader();
+            if(!reader.parseHeader(buf, ByteOrder.LITTLE_ENDIAN)) {
+                // Don't keep anything a failed pass picked up.
+                reader = new AcrReader();
+                if(!reader.parseHeader(buf, ByteOrder.BIG_ENDIAN))
+                    reader = new AcrReader();
+            }
+            return reader.readPixels(buf);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Reads the voxel spacing from the header of an ACR file.
+     * @param f File to read.
+     * @return Spacing in mm between columns, rows and slices, or null if the
+     * header doesn't give the pixel spacing. The slice spacing falls back to
+     * the slice thickness, then to the pixel spacing.
+     * @throws IOException If the file can't be read.
+     */
+    public static double[] readSpacing(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            AcrReader reader = new AcrReader();
+            if(!reader.parseHeader(buf, ByteOrder.LITTLE_ENDIAN)) {
+                reader = new AcrReader();
+                if(!reader.parseHeader(buf, ByteOrder.BIG_ENDIAN))
+                    return null;
+            }
+            if(reader.rowSpacing <= 0 || reader.columnSpacing <= 0)
+                return null;
+            double z = reader.sliceSpacing > 0 ? reader.sliceSpacing :
+                    reader.sliceThickness > 0 ? reader.sliceThickness : reader.rowSpacing;
+            return new double[] { reader.columnSpacing, reader.rowSpacing, z };
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Walks the header elements, looking for the image dimensions and the
+     * start of the pixel data.
+     * @param buf Mapped file.
+     * @param order Byte order to try.
+     * @return True if the pixel data element was found.
+     */
+    private boolean parseHeader(ByteBuffer buf, ByteOrder order) {
+        buf.order(order);
+        int pos = 0;
+        int prevGroup = 0;
+        while(pos + 8 <= buf.limit()) {
+            int group = buf.getShort(pos) & 0xffff;
+            int element = buf.getShort(pos+2) & 0xffff;
+            long length = buf.getInt(pos+4) & 0xffffffffL;
+            pos += 8;
+            
+            // Groups are in ascending order; anything else means we're
+            // reading garbage with the wrong byte order.
+            if(group < prevGroup)
+                return false;
+            prevGroup = group;
+            
+            int tag = group << 16 | element;
+            if(tag == TAG_PIXEL_DATA) {
+                pixelOffset = pos;
+                return true;
+            }
+            if(length > buf.limit() - pos)
+                return false;
+            
+            switch(tag) {
+                case TAG_PIXEL_SPACING:
+                    // "row spacing\column spacing"
+                    String[] parts = readString(buf, pos, (int)length).split("\\\\");
+                    if(parts.length == 2) {
+                        rowSpacing = parseDecimal(parts[0]);
+                        columnSpacing = parseDecimal(parts[1]);
+                    }
+                    break;
+                case TAG_SLICE_THICKNESS:
+                    sliceThickness = parseDecimal(readString(buf, pos, (int)length));
+                    break;
+                case TAG_SLICE_SPACING:
+                    sliceSpacing = parseDecimal(readString(buf, pos, (int)length));
+                    break;
+            }
+            
+            if(length == 2) {
+                int value = buf.getShort(pos) & 0xffff;
+                switch(tag) {
+                    case TAG_ROWS:           rows = value; break;
+                    case TAG_COLUMNS:        columns = value; break;
+                    case TAG_BITS_ALLOCATED: bitsAllocated = value; break;
+                    case TAG_BITS_STORED:    bitsStored = value; break;
+                }
+            }
+            pos += (int)length;
+        }
+        return false;
+    }
+    
+    /**
+     * Reads a text element.
+     * @param buf Mapped file.
+     * @param pos Start of the value.
+     * @param length Length of the value.
+     * @return Value, trimmed.
+     */
+    private static String readString(ByteBuffer buf, int pos, int length) {
+        byte[] bytes = new byte[length];
+        for(int i=0; i<length; i++)
+            bytes[i] = buf.get(pos+i);
+        return new String(bytes, StandardCharsets.US_ASCII).trim();
+    }
+    
+    /**
+     * Parses a decimal string element.
+     * @param s Value.
+     * @return Number, or -1 if it isn't one.
+     */
+    private static double parseDecimal(String s) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Copies the pixel data into a new image.
+     * @param buf Mapped file.
+     * @return Image.
+     * @throws IOException If the file is too short.
+     */
+    private BufferedImage readPixels(ByteBuffer buf) throws IOException {
+        if(rows <= 0 || columns <= 0) {
+            rows = DEFAULT_SIZE;
+            columns = DEFAULT_SIZE;
+        }
+        if(bitsAllocated != 8)
+            bitsAllocated = 16;
+        bitsStored = Math.min(Math.max(bitsStored, 1), bitsAllocated);
+        
+        int count = rows*columns;
+        long size = (long)count*(bitsAllocated/8);
+        if(pixelOffset < 0)
+            pixelOffset = buf.limit() - size; // Pixel data ends the file.
+        if(pixelOffset < 0 || pixelOffset + size > buf.limit())
+            throw new IOException("ACR file too short for a " + columns + "x" + rows + " image");
+        
+        buf.position((int)pixelOffset);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        
+        if(bitsAllocated == 8) {
+            BufferedImage img = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+            byte[] data = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+            buf.get(data, 0, count);
+            return img;
+        }
+        
+        BufferedImage img = new BufferedImage(columns, rows, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort)img.getRaster().getDataBuffer()).getData();
+        buf.asShortBuffer().get(data, 0, count);
+        
+        // Drop the unused low bits, leaving the stored value scaled to the
+        // full 16 bit range.
+        if(bitsStored < 16) {
+            short mask = (short)(0xffff << (16 - bitsStored));
+            for(int i=0; i<count; i++)
+                data[i] &= mask;
+        }
+        return img;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * File: DecodeService.java
+ * Description: A thread pool for decoding images in parallel.
+ */
+
+package medimage.models.local;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import medimage.models.Image;
+
+/**
+ * Decodes images on a bounded pool of background threads.
+ * Tasks are started in the order they are submitted, so the images at the
+ * beginning of a study become available first. The number of file bytes
+ * being decoded at once is limited, so a study of very large images can't
+ * exhaust the heap by decoding them all at the same time.
+ * @author col32
+ */
+public class DecodeService {
+    
+    /**
+     * Default limit on the number of bytes being decoded at once.
+     */
+    private static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 64L*1024*1024;
+    
+    private static final DecodeService shared = new DecodeService(
+            Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT_BYTES);
+    
+    /**
+     * Gets the decode service shared by all local studies.
+     * @return Decode service.
+     */
+    public static DecodeService getShared() {
+        return shared;
+    }
+    
+    private final ExecutorService executor;
+    
+    /**
+     * Bytes being decoded, counted in KiB so large limits fit in a semaphore.
+     */
+    private final Semaphore inFlight;
+    private final int maxPermits;
+    
+    /**
+     * Creates a decode service.
+     * @param threads Number of worker threads.
+     * @param maxInFlightBytes Maximum number of file bytes decoded at once.
+     */
+    public DecodeService(int threads, long maxInFlightBytes) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "medimage-decode-" + count.incrementAndGet());
+                        t.setDaemon(true); // Don't keep the application open.
+                        return t;
+                    }
+                });
+        maxPermits = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes/1024));
+        inFlight = new Semaphore(maxPermits, true);
+    }
+    
+    /**
+     * Gets the number of permits needed to decode an image.
+     * @param img Image.
+     * @return Permits, between 1 and the maximum so that one big image
+     * can't block forever.
+     */
+    private int permitsFor(Image img) {
+        if(!(img instanceof LocalImage))
+            return 1;
+        long kib = (((LocalImage)img).getFileLength()+1023)/1024;
+        return (int)Math.max(1, Math.min(maxPermits, kib));
+    }
+    
+    /**
+     * Decodes an image in the background.
+     * @param img Image to decode.
+     * @return Future for the image data.
+     */
+    public Future<BufferedImage> decode(final Image img) {
+        final int permits = permitsFor(img);
+        return executor.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws Exception {
+                inFlight.acquire(permits);
+                try {
+                    return img.getImageData();
+                } finally {
+                    inFlight.release(permits);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Decodes a list of images in the background.
+     * @param images Images to decode.
+     * @return One future per image, in the same order as the images.
+     */
+    public List<Future<BufferedImage>> decodeAll(List<Image> images) {
+        return decodeAll(images, null);
+    }
+    
+    /**
+     * Decodes a list of images in the background, submitting them in a given
+     * order.
+     * @param images Images to decode.
+     * @param order Indices into images, in the order to submit them, or null
+     * for list order.
+     * @return One future per image, in the same order as the images.
+     */
+    public List<Future<BufferedImage>> decodeAll(List<Image> images, int[] order) {
+        if(order == null)
+            order = identity(images.size());
+        if(order.length != images.size())
+            throw new IllegalArgumentException("Order must list every image once.");
+        
+        List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>(
+                Collections.<Future<BufferedImage>>nCopies(images.size(), null));
+        for(int i : order) {
+            if(futures.get(i) != null)
+                throw new IllegalArgumentException("Order must list every image once.");
+            futures.set(i, decode(images.get(i)));
+        }
+        return futures;
+    }
+    
+    /**
+     * Creates the order 0, 1, ..., n-1.
+     * @param n Length.
+     * @return Order.
+     */
+    private static int[] identity(int n) {
+        int[] order = new int[n];
+        for(int i=0; i<n; i++)
+            order[i] = i;
+        return order;
+    }
+}
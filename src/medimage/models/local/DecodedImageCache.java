@@ -0,0 +1,148 @@
+/**
+ * File: DecodedImageCache.java
+ * Description: A memory-limited cache of decoded images.
+ */
+
+package medimage.models.local;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded images shared by all local studies.
+ * The cache holds at most a fixed number of bytes of pixel data; when it's
+ * full, the least recently used images are dropped and have to be decoded
+ * again the next time they're needed.
+ * <p>
+ * The budget defaults to a quarter of the maximum heap size, and can be set
+ * with the <code>medimage.imageCacheBytes</code> system property.
+ * @author col32
+ */
+public class DecodedImageCache {
+    
+    private static final DecodedImageCache shared = new DecodedImageCache(defaultBudget());
+    
+    /**
+     * Gets the cache shared by all local studies.
+     * @return Cache.
+     */
+    public static DecodedImageCache getShared() {
+        return shared;
+    }
+    
+    /**
+     * Gets the budget to use for the shared cache.
+     * @return Budget in bytes.
+     */
+    private static long defaultBudget() {
+        String prop = System.getProperty("medimage.imageCacheBytes");
+        if(prop != null) {
+            try {
+                return Long.parseLong(prop.trim());
+            } catch(NumberFormatException ex) {
+                // Fall through to the default.
+            }
+        }
+        return Runtime.getRuntime().maxMemory()/4;
+    }
+    
+    /**
+     * Gets the number of bytes of pixel data an image holds.
+     * @param img Image.
+     * @return Size in bytes.
+     */
+    public static long sizeOf(BufferedImage img) {
+        DataBuffer buf = img.getRaster().getDataBuffer();
+        return (long)buf.getSize()*buf.getNumBanks()*DataBuffer.getDataTypeSize(buf.getDataType())/8;
+    }
+    
+    /**
+     * Images, in least to most recently used order.
+     */
+    private final LinkedHashMap<Object, BufferedImage> images =
+            new LinkedHashMap<Object, BufferedImage>(16, 0.75f, true);
+    private long budget;
+    private long used;
+    
+    /**
+     * Creates a cache.
+     * @param budget Maximum number of bytes of pixel data to hold.
+     */
+    public DecodedImageCache(long budget) {
+        this.budget = budget;
+    }
+    
+    /**
+     * Gets an image from the cache and marks it as recently used.
+     * @param key Key of the image.
+     * @return Image, or null if it isn't cached.
+     */
+    public synchronized BufferedImage get(Object key) {
+        return images.get(key);
+    }
+    
+    /**
+     * Adds an image to the cache, evicting old images if needed.
+     * @param key Key of the image.
+     * @param img Image to add.
+     */
+    public synchronized void put(Object key, BufferedImage img) {
+        BufferedImage prev = images.put(key, img);
+        if(prev != null)
+            used -= sizeOf(prev);
+        used += sizeOf(img);
+        evict();
+    }
+    
+    /**
+     * Removes an image from the cache.
+     * @param key Key of the image.
+     */
+    public synchronized void remove(Object key) {
+        BufferedImage prev = images.remove(key);
+        if(prev != null)
+            used -= sizeOf(prev);
+    }
+    
+    /**
+     * Sets the maximum number of bytes of pixel data to hold.
+     * @param budget Budget in bytes.
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+    
+    /**
+     * Gets the maximum number of bytes of pixel data to hold.
+     * @return Budget in bytes.
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+    
+    /**
+     * Gets the number of bytes of pixel data currently held.
+     * @return Size in bytes.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+    
+    /**
+     * Drops least recently used images until the cache is within its budget.
+     * The most recently used image is always kept, even if it's bigger than
+     * the whole budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Object, BufferedImage>> it = images.entrySet().iterator();
+        while(used > budget && images.size() > 1) {
+            Map.Entry<Object, BufferedImage> e = it.next();
+            used -= sizeOf(e.getValue());
+            it.remove();
+        }
+    }
+}
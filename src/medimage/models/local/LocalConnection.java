@@ -5,20 +5,36 @@
 
 package medimage.models.local;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 import medimage.models.Connection;
+import medimage.models.CopyProgress;
 import medimage.models.DisplayState;
 import medimage.models.Image;
+import medimage.models.StudiesListener;
 import medimage.models.Study;
 
 /**
@@ -27,67 +43,197 @@ import medimage.models.Study;
  * @author col32
  */
 public class LocalConnection extends Connection {
+    
+    /**
+     * Maximum number of images written at once when copying.
+     */
+    private static final int COPY_THREADS = 4;
+    
+    private final LocalStudyCatalog catalog;
+    
     /**
      * Creates a local connection object.
      */
     public LocalConnection() {
+        catalog = LocalStudyCatalog.get(new File("./studies/"));
     }
     
     @Override
     public List<Study> getStudies() {
-        File folder = new File("./studies/");
-        File[] studyFolders = folder.listFiles();
-        
-        List<Study> list = new ArrayList<Study>();
-        
-        for(File f : studyFolders)
-            if(f.isDirectory())
-                list.add(new LocalStudy(f));
-        
-        return list;
+        return catalog.getStudies();
     }
 
     @Override
-    public void copyStudyInto(String newName, Study study) {
-        File newStudyDir = new File("./studies/", newName);
-        
-        if(newStudyDir.exists()) {
-            // Override eixsting study
-            
-            // Need to delete directory contents before deleting directory
-            for(File f : newStudyDir.listFiles())
-                f.delete();
-            newStudyDir.delete(); // Delete directory
-        }
+    public void addStudiesListener(StudiesListener l) {
+        catalog.addStudiesListener(l);
+    }
+
+    @Override
+    public void removeStudiesListener(StudiesListener l) {
+        catalog.removeStudiesListener(l);
+    }
+
+    @Override
+    public void copyStudyInto(String newName, Study study, final CopyProgress progress)
+            throws IOException {
+        File root = new File("./studies/");
+        File newStudyDir = new File(root, newName);
         
-        // Create new directory
-        newStudyDir.mkdir();
+        // Copy into a hidden temporary directory, so a failed or cancelled
+        // copy leaves any existing study alone.
+        File tmpDir = new File(root, "." + newName + ".copy" + System.nanoTime());
+        if(!tmpDir.mkdir())
+            throw new IOException("Can't create " + tmpDir);
+        boolean succeeded = false;
         
-        // Copy images.
-        for(Image i : study.getImages()) {
-            File f = new File(newStudyDir, i.getName());
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(COPY_THREADS, Runtime.getRuntime().availableProcessors()));
+        try {
+            final List<Image> images = study.getImages();
+            
+            long total = 0;
+            for(Image i : images)
+                if(i instanceof LocalImage)
+                    total += ((LocalImage)i).getFileLength();
+            final long bytesTotal = total;
+            final AtomicLong bytesDone = new AtomicLong();
+            final AtomicInteger filesDone = new AtomicInteger();
+            
+            // Copy images in parallel.
+            List<Future<?>> futures = new ArrayList<Future<?>>(images.size());
+            for(final Image i : images) {
+                final File f = new File(tmpDir, i.getName());
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if(progress != null && progress.isCancelled())
+                            return null;
+                        copyImage(i, f);
+                        long bytes = bytesDone.addAndGet(f.length());
+                        int files = filesDone.incrementAndGet();
+                        if(progress != null)
+                            progress.progress(bytes, Math.max(bytes, bytesTotal), files, images.size());
+                        return null;
+                    }
+                }));
+            }
             
             try {
-                ImageIO.write(i.getImageData(), "jpeg", f);
-            } catch (IOException ex) {
-                // Ignore IO exceptions; can't do anything about them.
-                Logger.getLogger(LocalConnection.class.getName()).log(Level.SEVERE, null, ex);
+                for(Future<?> future : futures) {
+                    future.get();
+                    if(progress != null && progress.isCancelled())
+                        throw new CancellationException("Copy cancelled");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Copy interrupted");
+            } catch (ExecutionException ex) {
+                if(ex.getCause() instanceof IOException)
+                    throw (IOException)ex.getCause();
+                throw new IOException(ex.getCause());
             }
+            
+            // Copy display state
+            DisplayState state = study.getDisplayState();
+            if(state != null)
+                state.serialize(new File(tmpDir, ".displaystate").getPath());
+            
+            replaceDirectory(tmpDir, newStudyDir);
+            succeeded = true;
+        } finally {
+            pool.shutdownNow();
+            if(!succeeded)
+                deleteDirectory(tmpDir);
         }
         
-        // Copy display state
+        // Pick up the new study now, rather than when the watcher gets to it.
+        catalog.refresh(newName);
+    }
+    
+    /**
+     * Writes an image to a file. Unmodified local images are copied byte for
+     * byte; only images with modified pixels have to be encoded.
+     * @param i Image to write.
+     * @param f Destination file.
+     * @throws IOException
+     */
+    private static void copyImage(Image i, File f) throws IOException {
+        if(i instanceof LocalImage && !i.isModified())
+            copyFile(((LocalImage)i).getFile(), f);
+        else {
+            BufferedImage data = i.getImageData();
+            if(data == null)
+                throw new IOException("Can't read image " + i.getName());
+            ImageIO.write(data, "jpeg", f);
+        }
+    }
+    
+    /**
+     * Moves a directory into place, replacing the destination if it exists.
+     * The destination is moved aside first and only deleted once the new
+     * directory is in place; if that fails, it's moved back.
+     * @param src Directory to move.
+     * @param dest Destination.
+     * @throws IOException
+     */
+    private static void replaceDirectory(File src, File dest) throws IOException {
+        File old = null;
+        if(dest.exists()) {
+            old = new File(dest.getParentFile(), "." + dest.getName() + ".old" + System.nanoTime());
+            Files.move(dest.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        try {
+            Files.move(src.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            if(old != null)
+                Files.move(old.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            throw ex;
+        }
         
-        DisplayState state = study.getDisplayState();
-        if(state != null) {
-            File displayStateFile = new File(newStudyDir, ".displaystate");
+        if(old != null)
+            deleteDirectory(old);
+    }
+    
+    /**
+     * Deletes a directory and everything in it.
+     * @param dir Directory.
+     */
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null)
+            for(File f : files) {
+                if(f.isDirectory())
+                    deleteDirectory(f);
+                else
+                    f.delete();
+            }
+        dir.delete();
+    }
+    
+    /**
+     * Copies a file without reading it into the Java heap.
+     * @param src Source file.
+     * @param dest Destination file, which is overwritten.
+     * @throws IOException
+     */
+    private static void copyFile(File src, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dest);
             try {
-                state.serialize(displayStateFile.getPath());
-            } catch (IOException ex) {
-                // Ignore IO exceptions; can't do anything about them.
-                Logger.getLogger(LocalConnection.class.getName()).log(Level.SEVERE, null, ex);
+                FileChannel inChannel = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long size = inChannel.size();
+                long pos = 0;
+                while(pos < size)
+                    pos += inChannel.transferTo(pos, size - pos, outChannel);
+            } finally {
+                out.close();
             }
+        } finally {
+            in.close();
         }
-        
     }
 
     @Override
@@ -108,9 +254,9 @@ public class LocalConnection extends Connection {
         }
         
         // Get study if it exists
-        File studyFile = new File("./studies/", name);
-        if(studyFile.exists())
-            return new LocalStudy(studyFile);
+        LocalStudy study = catalog.find(name);
+        if(study != null)
+            return study;
         
         // Doesn't exist
         Logger.getLogger(LocalConnection.class.getName()).log(Level.WARNING,
@@ -7,119 +7,171 @@ package medimage.models.local;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.imageio.ImageIO;
-import javax.imageio.stream.FileImageInputStream;
 import medimage.models.Image;
 
 /**
  * Image on the local filesystem.
+ * The pixel data isn't read until it's first needed, so creating a LocalImage
+ * only costs a file reference. Decoded data is kept in the shared
+ * DecodedImageCache, and is read from the file again if it's been evicted.
  * @author col32
  */
 public class LocalImage extends Image {
     
+    private final File file;
     private final String name;
-    private List<BufferedImage> imageStack;
+    private final long length;
+    private final long lastModified;
     
     /**
-     * Loads a local image.
+     * Modified versions of the image. The original image isn't kept here; it's
+     * held by the DecodedImageCache, so it can be dropped and read again.
+     */
+    private final List<BufferedImage> imageStack = new ArrayList<BufferedImage>(0);
+    
+    /**
+     * Number of times the undo stack has changed.
+     */
+    private long generation;
+    
+    /**
+     * Study's pixel cache holding this image, or null to decode the file.
+     */
+    private PixelCacheFile pixelCache;
+    private int pixelCacheIndex;
+    
+    /**
+     * Creates a local image. The image data is loaded the first time
+     * getImageData is called.
      * @param f File of the image.
      */
     public LocalImage(File f) {
+        file = f;
         name = f.getName();
+        length = f.length();
+        lastModified = f.lastModified();
+    }
+    
+    /**
+     * Reads the image data from the file.
+     * @return Decoded image, or null if it couldn't be read.
+     */
+    private BufferedImage decode() {
+        if(pixelCache != null)
+            return pixelCache.read(pixelCacheIndex);
         
-        imageStack = new ArrayList<BufferedImage>(1);
-        
-        //Handling of ACR file types
-        if(name.endsWith(".acr")){
-            FileImageInputStream imageFile = null;
-            try {
-                imageFile = new FileImageInputStream(f);
-                imageFile.seek(0x2000);
-            }
-            catch (FileNotFoundException e) {
-                System.err.print("Error opening file: ");
-                System.err.println(e.getMessage());
-                System.exit(2);
-            }
-            catch (IOException e) {
-                System.err.print("IO error on file: ");
-                System.err.println(e.getMessage());
-                System.exit(2);
-            }
-
-            int sliceWidth = 256;
-            int sliceHeight = 256;
-
-            BufferedImage sliceBuffer = 
-                new BufferedImage( sliceWidth,sliceHeight,
-                                   BufferedImage.TYPE_USHORT_GRAY );
-
-            for ( int i = 0; i < sliceBuffer.getHeight(); i++ ) {
-                for ( int j = 0; j < sliceBuffer.getWidth(); j++ ) {
-
-                    int pixelHigh = 0;
-                    int pixelLow = 0;
-                    int pixel;
-
-                    try {
-                        pixelHigh = imageFile.read();
-                        pixelLow = imageFile.read();
-                        pixel = pixelHigh << 4 | pixelLow >> 4;
-
-                        sliceBuffer.setRGB( j, i,
-                                          pixel << 16 | pixel << 8 | pixel);
-
-                    }
-                    catch (IOException e) {
-                        System.err.print("IO error readin byte: ");
-                        System.err.println(e.getMessage());
-                        System.exit(2);
-                    }
-
-
-                }
-            }
-            imageStack.add(sliceBuffer);
-        } else {
-            
-            BufferedImage image;
-            try {
-                image = ImageIO.read(f);
-            } catch (IOException ex) {
-                // Can't do anything about this.
-                Logger.getLogger(LocalImage.class.getName()).log(Level.SEVERE, null, ex);
-                image = null;
-            }
-            imageStack.add(image);
+        BufferedImage image;
+        try {
+            if(name.endsWith(".acr"))
+                image = AcrReader.read(file);
+            else
+                image = ImageIO.read(file);
+        } catch (IOException ex) {
+            // Can't do anything about this.
+            Logger.getLogger(LocalImage.class.getName()).log(Level.SEVERE, null, ex);
+            image = null;
+        }
+        return image;
+    }
+    
+    /**
+     * Gets the original image, decoding it if it isn't in the cache.
+     * @return Original image, or null if it couldn't be read.
+     */
+    private BufferedImage getOriginal() {
+        DecodedImageCache cache = DecodedImageCache.getShared();
+        BufferedImage img = cache.get(this);
+        if(img == null) {
+            img = decode();
+            if(img != null)
+                cache.put(this, img);
         }
+        return img;
+    }
+    
+    /**
+     * Sets the pixel cache to read the image from instead of the file.
+     * @param cache Pixel cache of the study.
+     * @param index Index of this image in the cache.
+     */
+    synchronized void setPixelCache(PixelCacheFile cache, int index) {
+        pixelCache = cache;
+        pixelCacheIndex = index;
+    }
+    
+    /**
+     * Gets the original image data, ignoring any modified images.
+     * @return Original image, or null if it couldn't be read.
+     */
+    synchronized BufferedImage getOriginalData() {
+        return getOriginal();
     }
     
     @Override
-    public BufferedImage getImageData() {
-        return imageStack.get(imageStack.size()-1);
+    public synchronized BufferedImage getImageData() {
+        if(!imageStack.isEmpty())
+            return imageStack.get(imageStack.size()-1);
+        return getOriginal();
     }
     
     @Override
     public String getName() {
         return name;
     }
+    
+    /**
+     * Gets the file that the image is read from.
+     * @return File.
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Gets the size of the image file, as of when this object was created.
+     * @return Size in bytes.
+     */
+    public long getFileLength() {
+        return length;
+    }
+    
+    /**
+     * Gets the modification time of the image file, as of when this object
+     * was created.
+     * @return Modification time in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public synchronized boolean isModified() {
+        return !imageStack.isEmpty();
+    }
+
+    @Override
+    public synchronized long getGeneration() {
+        return generation;
+    }
 
     @Override
-    public void pushModifiedImage(BufferedImage img) {
+    public synchronized void pushModifiedImage(BufferedImage img) {
         imageStack.add(img);
+        generation++;
     }
 
     @Override
-    public void popModifiedImage() {
-        if(imageStack.size() == 1)
+    public synchronized void popModifiedImage() {
+        if(imageStack.isEmpty())
             throw new RuntimeException("popModifiedImage tried to pop last image.");
         imageStack.remove(imageStack.size()-1);
+        generation++;
     }
     
 }
@@ -4,13 +4,20 @@
  */
 package medimage.models.local;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import medimage.models.DisplayJournal;
 import medimage.models.DisplayState;
 import medimage.models.Image;
 import medimage.models.Study;
@@ -21,8 +28,28 @@ import medimage.models.Study;
  */
 public class LocalStudy extends Study {
     
+    /**
+     * Writes pixel caches in the background, one study at a time.
+     */
+    private static final ExecutorService pixelCacheWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "medimage-pixelcache");
+            t.setDaemon(true); // Don't keep the application open.
+            return t;
+        }
+    });
+    
+    /**
+     * Name of the display state journal in the study directory.
+     */
+    private static final String JOURNAL_NAME = ".displayjournal";
+    
     private final File directory;
     private List<Image> images;
+    private List<LocalImage> localImages;
+    private PixelCacheFile pixelCache;
+    private boolean pixelCacheWritten;
     private List<Study> studies;
     
     /**
@@ -46,19 +73,85 @@ public class LocalStudy extends Study {
         File[] imageFiles = directory.listFiles();
         Arrays.sort(imageFiles);
         
-        images = new ArrayList<Image>();
+        localImages = new ArrayList<LocalImage>();
         
+        // Skip hidden files, like the display state and pixel cache.
         for(File f : imageFiles)
-            if(f.isFile() && !f.getName().equals(".displaystate"))
-                images.add(new LocalImage(f));
+            if(f.isFile() && !f.getName().startsWith("."))
+                localImages.add(new LocalImage(f));
+        
+        // Read images from the pixel cache if it's up to date.
+        pixelCache = PixelCacheFile.open(directory, localImages);
+        if(pixelCache != null)
+            for(int i=0; i<localImages.size(); i++)
+                localImages.get(i).setPixelCache(pixelCache, i);
         
+        images = Collections.<Image>unmodifiableList(localImages);
         return images;
     }
 
+    /**
+     * Gets the voxel spacing from the header of the first image, for studies
+     * of ACR files. Other formats don't record it.
+     * @return Spacing in mm along x, y and z, or null.
+     */
+    @Override
+    public double[] getVoxelSpacing() {
+        getImages();
+        if(localImages.isEmpty())
+            return null;
+        File first = localImages.get(0).getFile();
+        if(!first.getName().toLowerCase().endsWith(".acr"))
+            return null;
+        try {
+            return AcrReader.readSpacing(first);
+        } catch (IOException ex) {
+            Logger.getLogger(LocalStudy.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public List<Future<BufferedImage>> loadImages(int[] order) {
+        final List<Future<BufferedImage>> futures = DecodeService.getShared().decodeAll(getImages(), order);
+        
+        // Now that the whole study is being decoded, save the pixels so
+        // the next load doesn't have to decode them.
+        if(pixelCache == null && !pixelCacheWritten && PixelCacheFile.isEnabled()) {
+            pixelCacheWritten = true;
+            final List<LocalImage> toWrite = localImages;
+            pixelCacheWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(Future<BufferedImage> f : futures)
+                            f.get();
+                        PixelCacheFile.write(directory, toWrite);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception ex) {
+                        Logger.getLogger(LocalStudy.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
+            });
+        }
+        return futures;
+    }
+
     @Override
     public DisplayState getDisplayState() {
         File stateFile = new File(directory, ".displaystate");
         
+        // A journal is only left behind if the program didn't close it, and
+        // holds newer changes than the display state. One that's open belongs
+        // to the study being viewed, so only the saved state is wanted.
+        File journalFile = new File(directory, JOURNAL_NAME);
+        if(!DisplayJournal.isOpen(journalFile)) {
+            DisplayState recovered = DisplayJournal.recover(journalFile);
+            if(recovered != null)
+                return recovered;
+        }
+        
         if(stateFile.exists())
             try {
                 return (DisplayState)DisplayState.deSerialize(stateFile.getPath());
@@ -84,6 +177,13 @@ public class LocalStudy extends Study {
         }
     }
 
+    @Override
+    public DisplayJournal openJournal() {
+        if(!DisplayJournal.isEnabled())
+            return null;
+        return new DisplayJournal(new File(directory, JOURNAL_NAME));
+    }
+
     @Override
     public List<Study> getStudies() {
         if(studies != null)
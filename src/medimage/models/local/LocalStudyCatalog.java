@@ -0,0 +1,267 @@
+/**
+ * File: LocalStudyCatalog.java
+ * Description: A cached list of the studies in a directory.
+ */
+
+package medimage.models.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import medimage.models.StudiesListener;
+import medimage.models.Study;
+
+/**
+ * The studies in a directory, kept in memory.
+ * The directory is listed once. After that, a WatchService thread picks up
+ * studies that are created or deleted, updates the list, and notifies the
+ * listeners. The same LocalStudy objects are handed out each time, so they
+ * keep their loaded images between calls.
+ * <p>
+ * Only the top-level study directories are watched; changes inside a study
+ * directory aren't picked up.
+ * @author col32
+ */
+public class LocalStudyCatalog {
+    
+    private static final Map<File, LocalStudyCatalog> catalogs = new HashMap<File, LocalStudyCatalog>();
+    
+    /**
+     * Gets the catalog of a directory, creating it if needed.
+     * @param root Directory containing the studies.
+     * @return Catalog.
+     */
+    public static synchronized LocalStudyCatalog get(File root) {
+        File key = root.getAbsoluteFile();
+        try {
+            key = key.getCanonicalFile();
+        } catch (IOException ex) {
+            // Use the absolute path.
+        }
+        LocalStudyCatalog catalog = catalogs.get(key);
+        if(catalog == null) {
+            catalog = new LocalStudyCatalog(key);
+            catalogs.put(key, catalog);
+        }
+        return catalog;
+    }
+    
+    private final File root;
+    
+    /**
+     * Studies, sorted by name. Null until first listed.
+     */
+    private List<LocalStudy> studies;
+    private final List<StudiesListener> listeners = new CopyOnWriteArrayList<StudiesListener>();
+    
+    private LocalStudyCatalog(File root) {
+        this.root = root;
+    }
+    
+    /**
+     * Gets the studies in the directory.
+     * @return Unmodifiable snapshot of the studies, sorted by name.
+     */
+    public synchronized List<Study> getStudies() {
+        ensureLoaded();
+        return Collections.unmodifiableList(new ArrayList<Study>(studies));
+    }
+    
+    /**
+     * Finds a study by name.
+     * @param name Name of the study directory.
+     * @return Study, or null if there's no such study.
+     */
+    public synchronized LocalStudy find(String name) {
+        ensureLoaded();
+        int i = indexOf(name);
+        return i >= 0 ? studies.get(i) : null;
+    }
+    
+    /**
+     * Adds a listener that is notified when studies are added or removed.
+     * @param l Listener.
+     */
+    public void addStudiesListener(StudiesListener l) {
+        listeners.add(l);
+    }
+    
+    /**
+     * Removes a listener.
+     * @param l Listener.
+     */
+    public void removeStudiesListener(StudiesListener l) {
+        listeners.remove(l);
+    }
+    
+    /**
+     * Reloads a study after its directory was created or replaced, without
+     * waiting for the watch service to notice. Any existing study object with
+     * that name is replaced, so stale loaded images are dropped.
+     * @param name Name of the study directory.
+     */
+    public void refresh(String name) {
+        synchronized(this) {
+            if(studies == null)
+                return; // Will be listed when needed.
+        }
+        update(name, true);
+    }
+    
+    /**
+     * Lists the directory and starts watching it, if that hasn't been done.
+     */
+    private void ensureLoaded() {
+        if(studies != null)
+            return;
+        
+        studies = new ArrayList<LocalStudy>();
+        File[] files = root.listFiles();
+        if(files != null)
+            for(File f : files)
+                if(isStudy(f))
+                    studies.add(new LocalStudy(f));
+        Collections.sort(studies, new Comparator<LocalStudy>() {
+            @Override
+            public int compare(LocalStudy a, LocalStudy b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        
+        startWatching();
+    }
+    
+    /**
+     * Checks whether a file is a study directory. Hidden directories are used
+     * for temporary files, and aren't studies.
+     * @param f File.
+     * @return True if it's a study.
+     */
+    private static boolean isStudy(File f) {
+        return f.isDirectory() && !f.getName().startsWith(".");
+    }
+    
+    /**
+     * Finds the index of a study in the sorted list.
+     * @param name Name of the study.
+     * @return Index, or (-(insertion point) - 1) if it's not in the list.
+     */
+    private int indexOf(String name) {
+        int low = 0, high = studies.size()-1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = studies.get(mid).getName().compareTo(name);
+            if(cmp < 0)
+                low = mid + 1;
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+    
+    /**
+     * Brings one entry of the list up to date with the filesystem.
+     * @param name Name of the study directory.
+     * @param reload True to replace the entry even if it's already listed.
+     */
+    private void update(String name, boolean reload) {
+        File f = new File(root, name);
+        boolean exists = isStudy(f);
+        
+        LocalStudy added = null, removed = null;
+        synchronized(this) {
+            int i = indexOf(name);
+            if(i >= 0 && (reload || !exists)) {
+                removed = studies.remove(i);
+                i = -(i + 1);
+            }
+            if(exists && i < 0) {
+                added = new LocalStudy(f);
+                studies.add(-(i + 1), added);
+            }
+        }
+        
+        if(removed != null)
+            for(StudiesListener l : listeners)
+                l.studyRemoved(removed);
+        if(added != null)
+            for(StudiesListener l : listeners)
+                l.studyAdded(added);
+    }
+    
+    /**
+     * Checks every study directory, after the watch service lost events.
+     */
+    private void rescan() {
+        List<String> names = new ArrayList<String>();
+        synchronized(this) {
+            for(LocalStudy s : studies)
+                names.add(s.getName());
+        }
+        File[] files = root.listFiles();
+        if(files != null)
+            for(File f : files)
+                names.add(f.getName());
+        for(String name : names)
+            update(name, false);
+    }
+    
+    /**
+     * Starts a thread that watches the directory for new and deleted studies.
+     */
+    private void startWatching() {
+        final WatchService watcher;
+        try {
+            watcher = root.toPath().getFileSystem().newWatchService();
+            root.toPath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException ex) {
+            // Can still list studies; they just won't update.
+            Logger.getLogger(LocalStudyCatalog.class.getName()).log(Level.WARNING,
+                    "Can't watch " + root + " for new studies", ex);
+            return;
+        }
+        
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        WatchKey key = watcher.take();
+                        for(WatchEvent<?> e : key.pollEvents()) {
+                            if(e.kind() == StandardWatchEventKinds.OVERFLOW)
+                                rescan();
+                            else
+                                update(((Path)e.context()).getFileName().toString(), false);
+                        }
+                        if(!key.reset())
+                            return; // Directory is gone.
+                    }
+                } catch (InterruptedException ex) {
+                    // Stop watching.
+                } catch (ClosedWatchServiceException ex) {
+                    // Stop watching.
+                }
+            }
+        }, "medimage-studies-watcher");
+        t.setDaemon(true); // Don't keep the application open.
+        t.start();
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * File: PixelCacheFile.java
+ * Description: A file of pre-decoded pixel data for a local study.
+ */
+
+package medimage.models.local;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar file holding the decoded pixels of every image in a study, so
+ * reopening the study doesn't have to decode the image files again.
+ * <p>
+ * The file is stored as '.pixelcache' in the study directory. It holds the
+ * raw samples of each image, in the image's own raster layout, followed by an
+ * index listing each image's name, file size and modification time, which are
+ * checked against the study's files before the cache is used. The samples are
+ * memory mapped and copied straight into a new raster when an image is read.
+ * <p>
+ * The cache can be turned off by setting the <code>medimage.pixelCache</code>
+ * system property to false.
+ * @author col32
+ */
+public class PixelCacheFile {
+    
+    /**
+     * Name of the cache file in the study directory.
+     */
+    public static final String FILE_NAME = ".pixelcache";
+    
+    private static final int MAGIC = 0x4d495043; // "MIPC"
+    private static final int VERSION = 1;
+    
+    /**
+     * Size of the fixed header: magic, version, image count and index offset.
+     * The pixel data starts right after it, and the index of images follows
+     * the pixel data.
+     */
+    private static final long DATA_START = 4+4+4+8;
+    
+    /**
+     * Gets whether the pixel cache should be used.
+     * @return True unless disabled with the medimage.pixelCache property.
+     */
+    public static boolean isEnabled() {
+        return !"false".equalsIgnoreCase(System.getProperty("medimage.pixelCache"));
+    }
+    
+    /**
+     * Header information about one cached image.
+     */
+    private static class Entry {
+        final String name;
+        final long length;
+        final long lastModified;
+        final int width, height, type;
+        final long offset;
+        
+        Entry(String name, long length, long lastModified,
+                int width, int height, int type, long offset) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+    
+    private final List<Entry> entries;
+    private final MappedByteBuffer data;
+    
+    private PixelCacheFile(List<Entry> entries, MappedByteBuffer data) {
+        this.entries = entries;
+        this.data = data;
+    }
+    
+    /**
+     * Opens the cache of a study, if it exists and matches the study's images.
+     * @param directory Study directory.
+     * @param images The study's images.
+     * @return Cache, or null if there is no valid cache.
+     */
+    public static PixelCacheFile open(File directory, List<LocalImage> images) {
+        File f = new File(directory, FILE_NAME);
+        if(!isEnabled() || !f.isFile())
+            return null;
+        
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                long size = raf.length();
+                if(size < DATA_START || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                    return null;
+                int count = raf.readInt();
+                long indexOffset = raf.readLong();
+                if(count != images.size() || indexOffset < DATA_START || indexOffset > size ||
+                        indexOffset - DATA_START > Integer.MAX_VALUE)
+                    return null;
+                
+                // Read the whole index in one go.
+                byte[] index = new byte[(int)(size - indexOffset)];
+                raf.seek(indexOffset);
+                raf.readFully(index);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+                
+                List<Entry> entries = new ArrayList<Entry>(count);
+                for(int i=0; i<count; i++) {
+                    Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(),
+                            in.readInt(), in.readInt(), in.readInt(), in.readLong());
+                    LocalImage img = images.get(i);
+                    if(!e.name.equals(img.getName()) ||
+                            e.length != img.getFileLength() ||
+                            e.lastModified != img.getLastModified())
+                        return null; // Out of date.
+                    if(e.offset < 0 || e.offset + bytesFor(e.width, e.height, e.type) > indexOffset - DATA_START)
+                        return null; // Corrupt.
+                    entries.add(e);
+                }
+                
+                MappedByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        DATA_START, indexOffset - DATA_START);
+                return new PixelCacheFile(entries, data);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PixelCacheFile.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Copies the cached pixels of an image into a new image.
+     * @param index Index of the image in the study.
+     * @return Image.
+     */
+    public BufferedImage read(int index) {
+        Entry e = entries.get(index);
+        BufferedImage img = new BufferedImage(e.width, e.height, e.type);
+        DataBuffer buf = img.getRaster().getDataBuffer();
+        
+        // Use a duplicate so reads from different threads don't share a
+        // position.
+        ByteBuffer src = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        src.position((int)e.offset);
+        if(buf instanceof DataBufferByte)
+            src.get(((DataBufferByte)buf).getData());
+        else
+            src.asShortBuffer().get(((DataBufferUShort)buf).getData());
+        return img;
+    }
+    
+    /**
+     * Checks whether an image can be stored in the cache.
+     * @param img Image.
+     * @return True if the image's raster layout is supported.
+     */
+    private static boolean isSupported(BufferedImage img) {
+        int type = img.getType();
+        return (type == BufferedImage.TYPE_BYTE_GRAY ||
+                type == BufferedImage.TYPE_USHORT_GRAY ||
+                type == BufferedImage.TYPE_3BYTE_BGR) &&
+                img.getRaster().getDataBuffer().getNumBanks() == 1 &&
+                img.getRaster().getParent() == null &&
+                img.getRaster().getDataBuffer().getSize() ==
+                    img.getWidth()*img.getHeight()*img.getRaster().getNumBands();
+    }
+    
+    /**
+     * Gets the number of bytes the samples of an image take.
+     * @param width Image width.
+     * @param height Image height.
+     * @param type BufferedImage type.
+     * @return Size in bytes.
+     */
+    private static long bytesFor(int width, int height, int type) {
+        int bytesPerPixel;
+        switch(type) {
+            case BufferedImage.TYPE_USHORT_GRAY: bytesPerPixel = 2; break;
+            case BufferedImage.TYPE_3BYTE_BGR:   bytesPerPixel = 3; break;
+            default:                             bytesPerPixel = 1; break;
+        }
+        return (long)width*height*bytesPerPixel;
+    }
+    
+    /**
+     * Writes the cache of a study. The images are fetched one at a time, so
+     * the whole study doesn't have to fit in memory. Nothing is written if any
+     * of the images can't be read or has an unsupported layout.
+     * @param directory Study directory.
+     * @param images The study's images.
+     * @throws IOException
+     */
+    public static void write(File directory, List<LocalImage> images) throws IOException {
+        // Write to a temporary file and move it into place, so readers never
+        // see a partly written cache.
+        File tmp = File.createTempFile(FILE_NAME, ".tmp", directory);
+        try {
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(images.size());
+                out.writeLong(0); // Index offset, filled in at the end.
+                
+                long offset = 0;
+                for(LocalImage img : images) {
+                    BufferedImage d = img.getOriginalData();
+                    if(d == null || !isSupported(d))
+                        return;
+                    
+                    index.writeUTF(img.getName());
+                    index.writeLong(img.getFileLength());
+                    index.writeLong(img.getLastModified());
+                    index.writeInt(d.getWidth());
+                    index.writeInt(d.getHeight());
+                    index.writeInt(d.getType());
+                    index.writeLong(offset);
+                    offset += bytesFor(d.getWidth(), d.getHeight(), d.getType());
+                    
+                    DataBuffer buf = d.getRaster().getDataBuffer();
+                    if(buf instanceof DataBufferByte)
+                        out.write(((DataBufferByte)buf).getData());
+                    else {
+                        short[] samples = ((DataBufferUShort)buf).getData();
+                        ByteBuffer bytes = ByteBuffer.allocate(samples.length*2).order(ByteOrder.BIG_ENDIAN);
+                        bytes.asShortBuffer().put(samples);
+                        out.write(bytes.array());
+                    }
+                }
+                index.flush();
+                indexBytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            
+            // Fill in where the index starts.
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.seek(DATA_START - 8);
+                raf.writeLong(tmp.length() - indexBytes.size());
+            } finally {
+                raf.close();
+            }
+            
+            Files.move(tmp.toPath(), new File(directory, FILE_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete(); // No-op if it was moved.
+        }
+    }
+}
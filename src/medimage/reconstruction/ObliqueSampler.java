@@ -0,0 +1,232 @@
+/**
+ * File: ObliqueSampler.java
+ * Description: Samples arbitrary planes through a volume.
+ */
+
+package medimage.reconstruction;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveAction;
+import medimage.models.Volume;
+import medimage.reconstruction.Resampler.Interpolation;
+
+/**
+ * Renders a plane at any angle through a volume.
+ * <p>
+ * The plane is given in millimetres by a point on it and its normal. Two
+ * directions in the plane are chosen for the image's columns and rows, and
+ * converted to steps in voxel coordinates. Each row then starts from one
+ * computed position and walks along it by adding the column step, in 16.16
+ * fixed point, so there's no per-pixel matrix multiply. Rows are split into
+ * bands rendered on the reconstruction ForkJoinPool, which keeps it fast
+ * enough to follow a mouse drag.
+ * @author col32
+ */
+public class ObliqueSampler {
+
+    /**
+     * Bits after the point in fixed point voxel coordinates.
+     */
+    private static final int FRACTION_BITS = 16;
+    private static final double FIXED_ONE = 1 << FRACTION_BITS;
+
+    /**
+     * Number of pixels below which a band isn't split any further.
+     */
+    private static final int BAND_PIXELS = 16*1024;
+
+    /**
+     * Color of pixels outside the volume.
+     */
+    private static final int OUTSIDE = 0xff000000;
+
+    private final Volume volume;
+
+    /**
+     * Creates a sampler.
+     * @param volume Volume to sample.
+     */
+    public ObliqueSampler(Volume volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Gets the volume being sampled.
+     * @return Volume.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * Picks the directions of the image's columns and rows for a plane. A
+     * plane facing along z gets columns along x and rows along y, like the
+     * front plane of an orthogonal reconstruction.
+     * @param normal Plane normal; needn't be normalized.
+     * @return Unit vectors u (along a row) and v (down a column).
+     */
+    public static double[][] basis(double[] normal) {
+        double[] n = normalize(normal);
+        // Build u from whichever of y or x is further from the normal.
+        double[] up = Math.abs(n[Volume.Y]) < 0.9 ? new double[] { 0, 1, 0 } : new double[] { 1, 0, 0 };
+        double[] u = normalize(cross(up, n));
+        double[] v = cross(n, u);
+        return new double[][] { u, v };
+    }
+
+    /**
+     * Renders a plane, centred on a point.
+     * @param origin Point on the plane, in mm from the centre of voxel
+     * (0, 0, 0). It's drawn at the centre of the image.
+     * @param normal Plane normal.
+     * @param pixelSize Size of an image pixel, in mm.
+     * @param mode NEAREST takes the nearest voxel; anything else blends the
+     * eight voxels around each sample, as the plane generally falls between
+     * voxels along every axis.
+     * @param dest Image to fill, with TYPE_INT_ARGB pixels.
+     */
+    public void render(double[] origin, double[] normal, double pixelSize, Interpolation mode, BufferedImage dest) {
+        int w = dest.getWidth();
+        int h = dest.getHeight();
+        double[][] uv = basis(normal);
+
+        // Steps and the position of pixel (0, 0), in voxel coordinates.
+        double[] du = new double[3];
+        double[] dv = new double[3];
+        double[] start = new double[3];
+        for(int a=0; a<3; a++) {
+            double spacing = volume.getSpacing(a);
+            du[a] = uv[0][a]*pixelSize/spacing;
+            dv[a] = uv[1][a]*pixelSize/spacing;
+            start[a] = origin[a]/spacing - du[a]*(w-1)/2.0 - dv[a]*(h-1)/2.0;
+        }
+
+        PlaneRenderer.invoke(new BandTask(PlaneRenderer.pixels(dest), w,
+                start, du, dv, mode != Interpolation.NEAREST, 0, h));
+    }
+
+    /**
+     * Renders a band of rows, splitting it in half until the bands are small
+     * enough.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] dest;
+        private final int width;
+        private final double[] start, du, dv;
+        private final boolean blend;
+        private final int firstRow, endRow;
+
+        BandTask(int[] dest, int width, double[] start, double[] du, double[] dv,
+                boolean blend, int firstRow, int endRow) {
+            this.dest = dest;
+            this.width = width;
+            this.start = start;
+            this.du = du;
+            this.dv = dv;
+            this.blend = blend;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if((endRow - firstRow)*width > BAND_PIXELS && endRow - firstRow > 1) {
+                int mid = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(dest, width, start, du, dv, blend, firstRow, mid),
+                          new BandTask(dest, width, start, du, dv, blend, mid, endRow));
+                return;
+            }
+
+            short[] data = volume.getData();
+            int sx = volume.getSize(Volume.X), sy = volume.getSize(Volume.Y), sz = volume.getSize(Volume.Z);
+            int tx = volume.getStride(Volume.X), ty = volume.getStride(Volume.Y), tz = volume.getStride(Volume.Z);
+            int offset = volume.getOffset();
+            int stepX = fixed(du[Volume.X]), stepY = fixed(du[Volume.Y]), stepZ = fixed(du[Volume.Z]);
+            // Nearest sampling rounds by starting half a voxel further on.
+            int round = blend ? 0 : 1 << (FRACTION_BITS-1);
+
+            for(int row=firstRow; row<endRow; row++) {
+                int x = fixed(start[Volume.X] + row*dv[Volume.X]) + round;
+                int y = fixed(start[Volume.Y] + row*dv[Volume.Y]) + round;
+                int z = fixed(start[Volume.Z] + row*dv[Volume.Z]) + round;
+                int out = row*width;
+
+                for(int col=0; col<width; col++, x += stepX, y += stepY, z += stepZ) {
+                    int ix = x >> FRACTION_BITS, iy = y >> FRACTION_BITS, iz = z >> FRACTION_BITS;
+                    if(ix < 0 || iy < 0 || iz < 0 || ix >= sx || iy >= sy || iz >= sz) {
+                        dest[out + col] = OUTSIDE;
+                        continue;
+                    }
+                    int i000 = offset + ix*tx + iy*ty + iz*tz;
+                    if(!blend) {
+                        dest[out + col] = PlaneRenderer.gray(data[i000] & 0xffff);
+                        continue;
+                    }
+
+                    // Neighbours past the last voxel repeat the edge.
+                    int nx = ix+1 < sx ? tx : 0;
+                    int ny = iy+1 < sy ? ty : 0;
+                    int nz = iz+1 < sz ? tz : 0;
+                    int wx = (x >> (FRACTION_BITS-8)) & 0xff;
+                    int wy = (y >> (FRACTION_BITS-8)) & 0xff;
+                    int wz = (z >> (FRACTION_BITS-8)) & 0xff;
+
+                    int c00 = lerp(data[i000] & 0xffff, data[i000+nx] & 0xffff, wx);
+                    int c10 = lerp(data[i000+ny] & 0xffff, data[i000+ny+nx] & 0xffff, wx);
+                    int c01 = lerp(data[i000+nz] & 0xffff, data[i000+nz+nx] & 0xffff, wx);
+                    int c11 = lerp(data[i000+nz+ny] & 0xffff, data[i000+nz+ny+nx] & 0xffff, wx);
+                    int s = lerp(lerp(c00, c10, wy), lerp(c01, c11, wy), wz);
+                    dest[out + col] = PlaneRenderer.gray(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends two samples.
+     * @param a First sample.
+     * @param b Second sample.
+     * @param w Weight of b, out of 256.
+     * @return Blended sample.
+     */
+    private static int lerp(int a, int b, int w) {
+        return (a*(256 - w) + b*w) >> 8;
+    }
+
+    /**
+     * Converts a voxel coordinate to fixed point.
+     * @param d Coordinate.
+     * @return Fixed point coordinate.
+     */
+    private static int fixed(double d) {
+        return (int)Math.floor(d*FIXED_ONE);
+    }
+
+    /**
+     * Computes a cross product.
+     * @param a First vector.
+     * @param b Second vector.
+     * @return a x b.
+     */
+    private static double[] cross(double[] a, double[] b) {
+        return new double[] {
+            a[1]*b[2] - a[2]*b[1],
+            a[2]*b[0] - a[0]*b[2],
+            a[0]*b[1] - a[1]*b[0]
+        };
+    }
+
+    /**
+     * Scales a vector to unit length.
+     * @param a Vector; must not be zero.
+     * @return Unit vector.
+     */
+    private static double[] normalize(double[] a) {
+        double len = Math.sqrt(a[0]*a[0] + a[1]*a[1] + a[2]*a[2]);
+        if(len == 0)
+            throw new IllegalArgumentException("Zero length normal");
+        return new double[] { a[0]/len, a[1]/len, a[2]/len };
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * File: OrthogonalRenderer.java
+ * Description: Keeps the three orthogonal views of a volume up to date.
+ */
+
+package medimage.reconstruction;
+
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import medimage.TransferFunction;
+import medimage.models.Volume;
+import medimage.reconstruction.PlaneRenderer.Plane;
+import medimage.reconstruction.ProjectionRenderer.Mode;
+import medimage.reconstruction.Resampler.Interpolation;
+
+/**
+ * Renders the top, front and side views of a volume, scaled in proportion
+ * to the voxel spacing, and only redoes the work that a slice change needs.
+ * <p>
+ * Moving the slice along one axis changes the contents of the one plane cut
+ * across that axis, so only that plane is resampled again. The
+ * other two planes just have their crosshair line moved: the pixels under
+ * the old line are restored from a clean copy, and the line is drawn in its
+ * new place.
+ * <p>
+ * The images returned by getImage are allocated once and updated in place,
+ * so a view showing them only needs to repaint.
+ * <p>
+ * Each plane can instead show an intensity projection of a slab of slices
+ * centred on the current one.
+ * @author col32
+ */
+public class OrthogonalRenderer {
+    
+    /**
+     * Images kept for one plane.
+     */
+    private static class PlaneImages {
+        /** Scaled plane, without crosshairs. */
+        BufferedImage clean;
+        /** Scaled plane with crosshairs; what's displayed. */
+        BufferedImage display;
+        /** Resampler for the plane's projected slab, once one is shown. */
+        Resampler slab;
+    }
+    
+    private final PlaneRenderer renderer;
+    private final Resampler resampler;
+    private final ProjectionRenderer projector;
+    private Interpolation interpolation;
+    private Mode projection;
+    private int slabThickness = 1;
+    private TransferFunction transfer = TransferFunction.identity();
+    private final PlaneImages[] planes = new PlaneImages[Plane.values().length];
+    private final int[] slices = new int[3];
+    
+    /**
+     * Creates a renderer and renders all three views.
+     * @param volume Volume to render.
+     * @param displaySize Number of pixels spanned by the physically largest
+     * axis of the volume.
+     * @param interpolation How to sample between voxels.
+     */
+    public OrthogonalRenderer(Volume volume, int displaySize, Interpolation interpolation) {
+        this.renderer = new PlaneRenderer(volume);
+        this.resampler = new Resampler(volume);
+        this.projector = new ProjectionRenderer(volume);
+        this.interpolation = interpolation;
+        
+        for(Plane p : Plane.values()) {
+            int[] size = resampler.getOutputSize(p, displaySize);
+            PlaneImages imgs = new PlaneImages();
+            imgs.clean = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+            imgs.display = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+            planes[p.ordinal()] = imgs;
+        }
+        
+        refresh();
+    }
+    
+    /**
+     * Renders all three views again. Used when the volume's samples have
+     * changed. The planes are rendered at the same time, each splitting its
+     * own work into tasks on the reconstruction pool.
+     */
+    public void refresh() {
+        rescale(EnumSet.allOf(Plane.class));
+    }
+    
+    /**
+     * Renders the views again after some slices along an axis have changed.
+     * The planes along the axis cut through every slice, so they're always
+     * rendered; the plane across it only if it shows one of the slices.
+     * @param axis Volume.X, Y or Z.
+     * @param changed Indices of the slices that changed.
+     * @return The planes whose images changed.
+     */
+    public Set<Plane> refreshSlices(int axis, Collection<Integer> changed) {
+        Set<Plane> stale = EnumSet.noneOf(Plane.class);
+        if(changed.isEmpty())
+            return stale;
+        for(Plane p : Plane.values()) {
+            if(p.fixedAxis != axis)
+                stale.add(p);
+            else if(projection != null && slabThickness > 1)
+                stale.add(p); // The slab may reach the changed slices.
+            else if(changed.contains(slices[axis]))
+                stale.add(p);
+        }
+        rescale(stale);
+        return stale;
+    }
+    
+    /**
+     * Gets how samples between voxels are computed.
+     * @return Interpolation.
+     */
+    public Interpolation getInterpolation() {
+        return interpolation;
+    }
+    
+    /**
+     * Changes how samples between voxels are computed, and renders the views
+     * again.
+     * @param interpolation Interpolation.
+     */
+    public void setInterpolation(Interpolation interpolation) {
+        if(interpolation == this.interpolation)
+            return;
+        this.interpolation = interpolation;
+        refresh();
+    }
+    
+    /**
+     * Gets the displayed image of a plane. The same image is returned each
+     * time, and is updated in place by setSlice.
+     * @param p Plane.
+     * @return Image.
+     */
+    public BufferedImage getImage(Plane p) {
+        return planes[p.ordinal()].display;
+    }
+    
+    /**
+     * Gets the projection shown in each plane.
+     * @return Projection, or null for single slices.
+     */
+    public Mode getProjection() {
+        return projection;
+    }
+    
+    /**
+     * Gets the number of slices projected.
+     * @return Slab thickness.
+     */
+    public int getSlabThickness() {
+        return slabThickness;
+    }
+    
+    /**
+     * Shows intensity projections of a slab instead of single slices, and
+     * renders the views again.
+     * @param projection Projection, or null for single slices.
+     * @param slabThickness Number of slices in the slab.
+     */
+    public void setProjection(Mode projection, int slabThickness) {
+        slabThickness = Math.max(1, slabThickness);
+        if(projection == this.projection && slabThickness == this.slabThickness)
+            return;
+        this.projection = projection;
+        this.slabThickness = slabThickness;
+        refresh();
+    }
+    
+    /**
+     * Sets the transfer function, such as a window, that the rendered planes
+     * are shown through, and renders the views again.
+     * @param transfer Transfer function.
+     */
+    public void setTransferFunction(TransferFunction transfer) {
+        if(transfer == this.transfer)
+            return;
+        this.transfer = transfer;
+        refresh();
+    }
+    
+    /**
+     * Gets the volume being rendered.
+     * @return Volume.
+     */
+    public Volume getVolume() {
+        return renderer.getVolume();
+    }
+    
+    /**
+     * Gets the current slice along an axis.
+     * @param axis Volume.X, Y or Z.
+     * @return Slice index.
+     */
+    public int getSlice(int axis) {
+        return slices[axis];
+    }
+    
+    /**
+     * Moves the slice along an axis, and updates the views.
+     * @param axis Volume.X, Y or Z.
+     * @param index New slice index; clamped to the volume.
+     * @return The planes whose images changed.
+     */
+    public Set<Plane> setSlice(int axis, int index) {
+        index = Math.min(Math.max(index, 0), renderer.getVolume().getSize(axis)-1);
+        if(index == slices[axis])
+            return EnumSet.noneOf(Plane.class);
+        
+        int old = slices[axis];
+        slices[axis] = index;
+        
+        for(Plane p : Plane.values()) {
+            if(p.fixedAxis == axis) {
+                // Contents changed; render it again.
+                rescale(p);
+            } else {
+                // Only the crosshair moved.
+                restoreLine(p, axis, old);
+                renderer.drawCrosshairs(p, slices, planes[p.ordinal()].display);
+            }
+        }
+        return EnumSet.allOf(Plane.class);
+    }
+    
+    /**
+     * Resamples a plane and redraws its display image.
+     * @param p Plane.
+     */
+    private void rescale(Plane p) {
+        PlaneImages imgs = planes[p.ordinal()];
+        if(projection != null && slabThickness > 1) {
+            Volume slab = projector.project(p, slices[p.fixedAxis], slabThickness, projection);
+            if(imgs.slab == null || imgs.slab.getVolume() != slab)
+                imgs.slab = new Resampler(slab);
+            imgs.slab.render(p, 0, interpolation, imgs.clean);
+        } else {
+            resampler.render(p, slices[p.fixedAxis], interpolation, imgs.clean);
+        }
+        transfer.apply(imgs.clean, imgs.clean);
+        int[] clean = PlaneRenderer.pixels(imgs.clean);
+        System.arraycopy(clean, 0, PlaneRenderer.pixels(imgs.display), 0, clean.length);
+        renderer.drawCrosshairs(p, slices, imgs.display);
+    }
+    
+    /**
+     * Resamples some planes at the same time.
+     * @param planes Planes.
+     */
+    private void rescale(Set<Plane> planes) {
+        if(planes.size() == 1)
+            rescale(planes.iterator().next());
+        else if(!planes.isEmpty())
+            PlaneRenderer.invoke(new RescaleTask(planes.toArray(new Plane[planes.size()])));
+    }
+    
+    /**
+     * Resamples some planes, one subtask per plane.
+     */
+    private class RescaleTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Plane[] planes;
+
+        /**
+         * Creates a task.
+         * @param planes Planes to resample.
+         */
+        RescaleTask(Plane... planes) {
+            this.planes = planes;
+        }
+
+        @Override
+        protected void compute() {
+            if(planes.length == 1) {
+                rescale(planes[0]);
+                return;
+            }
+            RescaleTask[] tasks = new RescaleTask[planes.length];
+            for(int i=0; i<planes.length; i++)
+                tasks[i] = new RescaleTask(planes[i]);
+            invokeAll(tasks);
+        }
+    }
+    
+    /**
+     * Erases a crosshair line from a display image by copying the clean
+     * pixels back over it.
+     * @param p Plane.
+     * @param axis Axis the line marks.
+     * @param slice Slice the line was drawn at.
+     */
+    private void restoreLine(Plane p, int axis, int slice) {
+        PlaneImages imgs = planes[p.ordinal()];
+        int[] src = PlaneRenderer.pixels(imgs.clean);
+        int[] dest = PlaneRenderer.pixels(imgs.display);
+        Volume v = renderer.getVolume();
+        int w = imgs.clean.getWidth();
+        int h = imgs.clean.getHeight();
+        
+        if(axis == p.uAxis) {
+            int[] cols = PlaneRenderer.lineBounds(slice, v.getSize(axis), w);
+            for(int row=0; row<h; row++)
+                System.arraycopy(src, row*w + cols[0], dest, row*w + cols[0], cols[1] - cols[0]);
+        } else {
+            int[] rows = PlaneRenderer.lineBounds(slice, v.getSize(axis), h);
+            System.arraycopy(src, rows[0]*w, dest, rows[0]*w, (rows[1] - rows[0])*w);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * File: PlaneRenderer.java
+ * Description: The orthogonal planes of a volume, and their crosshairs.
+ */
+
+package medimage.reconstruction;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import medimage.models.Volume;
+
+/**
+ * Defines the axis-aligned planes of a volume, and draws the crosshairs
+ * marking the current slices on rendered planes. Also holds the shared
+ * ForkJoinPool and pixel helpers that the reconstruction renderers use.
+ * @author col32
+ */
+public class PlaneRenderer {
+    
+    /**
+     * The three orthogonal planes of a reconstruction. Each plane is drawn
+     * with its u axis going right and its v axis going down, and shows the
+     * voxels at one position along its fixed axis.
+     */
+    public enum Plane {
+        /** Looking down the y axis. */
+        TOP(Volume.X, Volume.Z, Volume.Y),
+        /** Looking down the z axis. */
+        FRONT(Volume.X, Volume.Y, Volume.Z),
+        /** Looking down the x axis. */
+        SIDE(Volume.Z, Volume.Y, Volume.X);
+        
+        /** Axis of the volume along the image's columns. */
+        public final int uAxis;
+        /** Axis of the volume along the image's rows. */
+        public final int vAxis;
+        /** Axis of the volume that the plane cuts across. */
+        public final int fixedAxis;
+        
+        private Plane(int uAxis, int vAxis, int fixedAxis) {
+            this.uAxis = uAxis;
+            this.vAxis = vAxis;
+            this.fixedAxis = fixedAxis;
+        }
+    }
+    
+    /**
+     * Colors of the crosshair lines marking the slice along each axis;
+     * red for x, green for y and blue for z.
+     */
+    private static final int[] AXIS_COLORS = { 0xffff0000, 0xff00ff00, 0xff0000ff };
+    
+    private static final ForkJoinPool pool = new ForkJoinPool();
+    
+    /**
+     * Runs a task on the pool that reconstruction rendering runs on, and
+     * waits for it. A task started from inside another one runs as part of
+     * it, so renders can be nested, such as one per plane.
+     * @param task Task.
+     */
+    static void invoke(ForkJoinTask<?> task) {
+        if(ForkJoinTask.getPool() == pool)
+            task.invoke();
+        else
+            pool.invoke(task);
+    }
+    
+    /**
+     * Converts a volume sample to an opaque gray ARGB color.
+     * @param sample Sample, 0-65535.
+     * @return Color.
+     */
+    static int gray(int sample) {
+        return 0xff000000 | (sample >>> 8)*0x010101;
+    }
+    
+    private final Volume volume;
+    
+    /**
+     * Creates a renderer.
+     * @param volume Volume whose planes are drawn on.
+     */
+    public PlaneRenderer(Volume volume) {
+        this.volume = volume;
+    }
+    
+    /**
+     * Gets the volume being rendered.
+     * @return Volume.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+    
+    /**
+     * Draws the lines marking the other two slices on a rendered plane.
+     * The image may be a scaled copy of the plane; the lines are then as
+     * thick as one voxel is wide. Where the lines cross, the x line is drawn
+     * over the y line, which is drawn over the z line.
+     * @param p Plane.
+     * @param slices Position along each axis.
+     * @param dest Rendered plane, with TYPE_INT_ARGB pixels.
+     */
+    public void drawCrosshairs(Plane p, int[] slices, BufferedImage dest) {
+        int[] px = pixels(dest);
+        int w = dest.getWidth();
+        int h = dest.getHeight();
+        int[] cols = lineBounds(slices[p.uAxis], volume.getSize(p.uAxis), w);
+        int[] rows = lineBounds(slices[p.vAxis], volume.getSize(p.vAxis), h);
+        
+        // Draw the lower priority line first.
+        if(p.uAxis > p.vAxis) {
+            fillColumns(px, w, h, cols, AXIS_COLORS[p.uAxis]);
+            fillRows(px, w, rows, AXIS_COLORS[p.vAxis]);
+        } else {
+            fillRows(px, w, rows, AXIS_COLORS[p.vAxis]);
+            fillColumns(px, w, h, cols, AXIS_COLORS[p.uAxis]);
+        }
+    }
+    
+    /**
+     * Gets the range of image pixels covered by one voxel when a plane is
+     * scaled to an image.
+     * @param voxel Voxel index.
+     * @param voxels Number of voxels.
+     * @param pixels Number of pixels.
+     * @return Start (inclusive) and end (exclusive) pixel.
+     */
+    public static int[] lineBounds(int voxel, int voxels, int pixels) {
+        if(voxel < 0 || voxel >= voxels)
+            return new int[] { 0, 0 };
+        int start = (int)((long)voxel*pixels/voxels);
+        int end = (int)((long)(voxel+1)*pixels/voxels);
+        return new int[] { start, Math.max(end, start+1) };
+    }
+    
+    /**
+     * Fills a range of columns.
+     * @param px Pixels.
+     * @param w Image width.
+     * @param h Image height.
+     * @param cols Start and end column.
+     * @param color ARGB color.
+     */
+    private static void fillColumns(int[] px, int w, int h, int[] cols, int color) {
+        for(int row=0; row<h; row++)
+            Arrays.fill(px, row*w + cols[0], row*w + cols[1], color);
+    }
+    
+    /**
+     * Fills a range of rows.
+     * @param px Pixels.
+     * @param w Image width.
+     * @param rows Start and end row.
+     * @param color ARGB color.
+     */
+    private static void fillRows(int[] px, int w, int[] rows, int color) {
+        Arrays.fill(px, rows[0]*w, rows[1]*w, color);
+    }
+    
+    /**
+     * Gets the pixel array of a TYPE_INT_ARGB image.
+     * @param img Image.
+     * @return ARGB pixels, one int per pixel, row by row.
+     */
+    static int[] pixels(BufferedImage img) {
+        return ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * File: ProjectionRenderer.java
+ * Description: Projects slabs of a volume to maximum, minimum or average intensity images.
+ */
+
+package medimage.reconstruction;
+
+import java.util.concurrent.RecursiveAction;
+import medimage.models.Volume;
+import medimage.reconstruction.PlaneRenderer.Plane;
+
+/**
+ * Computes intensity projections through a slab of a volume.
+ * <p>
+ * A projection collapses the slices of a slab along a plane's fixed axis
+ * into one, keeping the maximum (MIP), minimum (MinIP) or average (AvgIP)
+ * of each ray. The result is a volume one voxel thick along the fixed axis,
+ * so it can be displayed like any other plane.
+ * <p>
+ * Rays are processed a row at a time, in bands of rows on the
+ * reconstruction ForkJoinPool. Within a row the loops are ordered by memory
+ * stride: if the row runs along memory, all the row's rays step through the
+ * slab together into an int accumulator per ray; otherwise each ray is run
+ * to the end of the slab in turn.
+ * @author col32
+ */
+public class ProjectionRenderer {
+
+    /**
+     * What a ray keeps of the voxels it passes through.
+     */
+    public enum Mode {
+        /** Maximum intensity projection. */
+        MAXIMUM,
+        /** Minimum intensity projection. */
+        MINIMUM,
+        /** Average intensity projection. */
+        AVERAGE
+    }
+
+    /**
+     * Number of voxels read below which a band isn't split any further.
+     */
+    private static final int BAND_VOXELS = 256*1024;
+
+    private final Volume volume;
+
+    /**
+     * Projected slab for each plane, reused by every projection of the plane.
+     */
+    private final Volume[] slabs = new Volume[Plane.values().length];
+
+    /**
+     * Creates a projection renderer.
+     * @param volume Volume to project.
+     */
+    public ProjectionRenderer(Volume volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Gets the volume being projected.
+     * @return Volume.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * Projects a slab along a plane's fixed axis.
+     * @param p Plane.
+     * @param slice Slice at the centre of the slab.
+     * @param thickness Number of slices in the slab; clipped to the volume.
+     * @param mode Projection.
+     * @return Volume with the same axes and spacing, one voxel thick along
+     * the plane's fixed axis. The same volume is returned for every projection
+     * of a plane, and is overwritten by the next one.
+     */
+    public Volume project(Plane p, int slice, int thickness, Mode mode) {
+        int sizeF = volume.getSize(p.fixedAxis);
+        thickness = Math.max(1, thickness);
+        int first = Math.max(0, slice - (thickness-1)/2);
+        int end = Math.min(sizeF, slice - (thickness-1)/2 + thickness);
+        first = Math.min(first, sizeF-1);
+        end = Math.max(end, first+1);
+
+        Volume slab = slabs[p.ordinal()];
+        if(slab == null)
+            slab = slabs[p.ordinal()] = createSlab(p);
+        PlaneRenderer.invoke(new BandTask(p, first, end, mode, slab.getData(),
+                0, volume.getSize(p.vAxis)));
+        return slab;
+    }
+
+    /**
+     * Creates the volume that a plane's projections are written to.
+     * @param p Plane.
+     * @return Volume with the same axes and spacing, one voxel thick along
+     * the plane's fixed axis.
+     */
+    private Volume createSlab(Plane p) {
+        int width = volume.getSize(p.uAxis);
+        int height = volume.getSize(p.vAxis);
+        int[] size = new int[3];
+        int[] stride = new int[3];
+        double[] spacing = new double[3];
+        size[p.uAxis] = width;
+        size[p.vAxis] = height;
+        size[p.fixedAxis] = 1;
+        stride[p.uAxis] = 1;
+        stride[p.vAxis] = width;
+        stride[p.fixedAxis] = width*height;
+        for(int a=0; a<3; a++)
+            spacing[a] = volume.getSpacing(a);
+        return new Volume(new short[width*height], size, stride, 0, spacing);
+    }
+
+    /**
+     * Projects a band of rows, splitting it in half until the bands are
+     * small enough.
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Plane plane;
+        private final int first, end;
+        private final Mode mode;
+        private final short[] out;
+        private final int firstRow, endRow;
+
+        BandTask(Plane plane, int first, int end, Mode mode, short[] out, int firstRow, int endRow) {
+            this.plane = plane;
+            this.first = first;
+            this.end = end;
+            this.mode = mode;
+            this.out = out;
+            this.firstRow = firstRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            int width = volume.getSize(plane.uAxis);
+            long voxels = (long)(endRow - firstRow)*width*(end - first);
+            if(voxels > BAND_VOXELS && endRow - firstRow > 1) {
+                int mid = (firstRow + endRow) >>> 1;
+                invokeAll(new BandTask(plane, first, end, mode, out, firstRow, mid),
+                          new BandTask(plane, first, end, mode, out, mid, endRow));
+                return;
+            }
+
+            short[] data = volume.getData();
+            int strideU = volume.getStride(plane.uAxis);
+            int strideV = volume.getStride(plane.vAxis);
+            int strideF = volume.getStride(plane.fixedAxis);
+            int depth = end - first;
+            int[] acc = new int[width];
+            boolean rowMajor = Math.abs(strideU) <= Math.abs(strideF);
+
+            for(int v=firstRow; v<endRow; v++) {
+                int row = volume.getOffset() + v*strideV + first*strideF;
+                if(rowMajor)
+                    projectRow(data, row, strideU, strideF, width, depth, acc);
+                else
+                    projectRays(data, row, strideU, strideF, width, depth, acc);
+
+                int o = v*width;
+                if(mode == Mode.AVERAGE) {
+                    for(int u=0; u<width; u++)
+                        out[o + u] = (short)(acc[u]/depth);
+                } else {
+                    for(int u=0; u<width; u++)
+                        out[o + u] = (short)acc[u];
+                }
+            }
+        }
+
+        /**
+         * Accumulates a row of rays, stepping them through the slab together.
+         * @param data Samples.
+         * @param row Index of the first voxel of the row, in the first slice.
+         * @param strideU Stride along the row.
+         * @param strideF Stride through the slab.
+         * @param width Number of rays.
+         * @param depth Number of slices.
+         * @param acc Accumulator per ray.
+         */
+        private void projectRow(short[] data, int row, int strideU, int strideF,
+                int width, int depth, int[] acc) {
+            for(int u=0, i=row; u<width; u++, i += strideU)
+                acc[u] = data[i] & 0xffff;
+            if(strideU == 1) {
+                projectContiguousRow(data, row, strideF, width, depth, acc);
+                return;
+            }
+            for(int f=1; f<depth; f++) {
+                int start = row + f*strideF;
+                switch(mode) {
+                    case MAXIMUM:
+                        for(int u=0, i=start; u<width; u++, i += strideU)
+                            acc[u] = Math.max(acc[u], data[i] & 0xffff);
+                        break;
+                    case MINIMUM:
+                        for(int u=0, i=start; u<width; u++, i += strideU)
+                            acc[u] = Math.min(acc[u], data[i] & 0xffff);
+                        break;
+                    default:
+                        for(int u=0, i=start; u<width; u++, i += strideU)
+                            acc[u] += data[i] & 0xffff;
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Accumulates a row of rays whose voxels are next to each other in
+         * memory. Simple indexing lets the JIT vectorize these loops.
+         * @param data Samples.
+         * @param row Index of the first voxel of the row, in the first slice.
+         * @param strideF Stride through the slab.
+         * @param width Number of rays.
+         * @param depth Number of slices.
+         * @param acc Accumulator per ray.
+         */
+        private void projectContiguousRow(short[] data, int row, int strideF,
+                int width, int depth, int[] acc) {
+            for(int f=1; f<depth; f++) {
+                int start = row + f*strideF;
+                switch(mode) {
+                    case MAXIMUM:
+                        for(int u=0; u<width; u++)
+                            acc[u] = Math.max(acc[u], data[start + u] & 0xffff);
+                        break;
+                    case MINIMUM:
+                        for(int u=0; u<width; u++)
+                            acc[u] = Math.min(acc[u], data[start + u] & 0xffff);
+                        break;
+                    default:
+                        for(int u=0; u<width; u++)
+                            acc[u] += data[start + u] & 0xffff;
+                        break;
+                }
+            }
+        }
+        
+        /**
+         * Accumulates a row of rays, running each through the slab in turn.
+         * @param data Samples.
+         * @param row Index of the first voxel of the row, in the first slice.
+         * @param strideU Stride along the row.
+         * @param strideF Stride through the slab.
+         * @param width Number of rays.
+         * @param depth Number of slices.
+         * @param acc Accumulator per ray.
+         */
+        private void projectRays(short[] data, int row, int strideU, int strideF,
+                int width, int depth, int[] acc) {
+            for(int u=0; u<width; u++) {
+                int i = row + u*strideU;
+                int a = data[i] & 0xffff;
+                switch(mode) {
+                    case MAXIMUM:
+                        for(int f=1; f<depth; f++)
+                            a = Math.max(a, data[i += strideF] & 0xffff);
+                        break;
+                    case MINIMUM:
+                        for(int f=1; f<depth; f++)
+                            a = Math.min(a, data[i += strideF] & 0xffff);
+                        break;
+                    default:
+                        for(int f=1; f<depth; f++)
+                            a += data[i += strideF] & 0xffff;
+                        break;
+                }
+                acc[u] = a;
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * File: Resampler.java
+ * Description: Resamples planes of a volume to display size, in proportion to the voxel spacing.
+ */
+
+package medimage.reconstruction;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveAction;
+import medimage.models.Volume;
+import medimage.reconstruction.PlaneRenderer.Plane;
+
+/**
+ * Renders axis-aligned planes of a volume at any size, interpolating between
+ * voxels.
+ * <p>
+ * Output images are sized by the physical extent of the plane, using the
+ * volume's voxel spacing, so thick slices are stretched rather than the
+ * whole plane being squashed into a square. The image is split into tiles
+ * that are rendered on the reconstruction ForkJoinPool. The voxel coordinates
+ * and weights for each column and row are worked out once per render, so the
+ * inner loop is only array reads and integer blends.
+ * @author col32
+ */
+public class Resampler {
+
+    /**
+     * How samples between voxels are computed.
+     */
+    public enum Interpolation {
+        /** The nearest voxel. Fast, but blocky when magnified. */
+        NEAREST,
+        /**
+         * Blends the four nearest voxels in the plane. Axis-aligned planes
+         * always lie on a slice; the oblique view also blends between slices.
+         */
+        BILINEAR;
+
+        /**
+         * Gets the interpolation to use when none is chosen. It can be set
+         * with the medimage.interpolation system property.
+         * @return Interpolation; BILINEAR unless set otherwise.
+         */
+        public static Interpolation getDefault() {
+            String name = System.getProperty("medimage.interpolation");
+            if(name != null)
+                try {
+                    return valueOf(name.trim().toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    // Fall through to the default.
+                }
+            return BILINEAR;
+        }
+    }
+
+    /**
+     * Number of pixels below which a tile isn't split any further.
+     */
+    private static final int TILE_PIXELS = 64*64;
+
+    /**
+     * Interpolation weights are fixed point, out of 1 << WEIGHT_BITS.
+     */
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    private final Volume volume;
+
+    /**
+     * Creates a resampler.
+     * @param volume Volume to sample.
+     */
+    public Resampler(Volume volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Gets the volume being sampled.
+     * @return Volume.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * Works out the size of the image for a plane, so that the physically
+     * largest axis of the volume spans a given number of pixels.
+     * @param p Plane.
+     * @param maxSize Number of pixels for the largest axis.
+     * @return Width and height.
+     */
+    public int[] getOutputSize(Plane p, int maxSize) {
+        double maxExtent = Math.max(Math.max(volume.getExtent(Volume.X),
+                volume.getExtent(Volume.Y)), volume.getExtent(Volume.Z));
+        double scale = maxSize/maxExtent;
+        return new int[] {
+            Math.max(1, (int)Math.round(volume.getExtent(p.uAxis)*scale)),
+            Math.max(1, (int)Math.round(volume.getExtent(p.vAxis)*scale))
+        };
+    }
+
+    /**
+     * Renders a plane, scaled to fill an image.
+     * @param p Plane.
+     * @param slice Slice along the plane's fixed axis.
+     * @param mode Interpolation.
+     * @param dest Image to fill, with TYPE_INT_ARGB pixels.
+     */
+    public void render(Plane p, int slice, Interpolation mode, BufferedImage dest) {
+        int w = dest.getWidth();
+        int h = dest.getHeight();
+        boolean blend = mode != Interpolation.NEAREST;
+
+        Axis u = new Axis(volume.getSize(p.uAxis), volume.getStride(p.uAxis), w, blend);
+        Axis v = new Axis(volume.getSize(p.vAxis), volume.getStride(p.vAxis), h, blend);
+
+        int f = Math.min(Math.max(slice, 0), volume.getSize(p.fixedAxis)-1);
+        int base = volume.getOffset() + f*volume.getStride(p.fixedAxis);
+
+        PlaneRenderer.invoke(new TileTask(PlaneRenderer.pixels(dest), w,
+                u, v, base, blend, 0, 0, w, h));
+    }
+
+    /**
+     * Voxel offsets and weights for each output column or row.
+     */
+    private static class Axis {
+        /** Array offset of the voxel before the sample. */
+        final int[] off0;
+        /** Array offset of the voxel after the sample. */
+        final int[] off1;
+        /** Weight of the voxel after the sample. */
+        final int[] weight;
+
+        /**
+         * Maps output pixels to voxels. Pixel centres are spread evenly over
+         * the voxel centres, so the edge pixels line up with the edge voxels.
+         * @param voxels Number of voxels along the axis.
+         * @param stride Array stride of the axis.
+         * @param pixels Number of output pixels.
+         * @param blend False to use the nearest voxel only.
+         */
+        Axis(int voxels, int stride, int pixels, boolean blend) {
+            off0 = new int[pixels];
+            off1 = new int[pixels];
+            weight = new int[pixels];
+            double scale = voxels/(double)pixels;
+            for(int i=0; i<pixels; i++) {
+                double c = Math.min(Math.max((i + 0.5)*scale - 0.5, 0), voxels-1);
+                int i0, i1, wt;
+                if(blend) {
+                    i0 = (int)c;
+                    i1 = Math.min(i0+1, voxels-1);
+                    wt = (int)Math.round((c - i0)*WEIGHT_ONE);
+                } else {
+                    i0 = i1 = Math.min((int)(c + 0.5), voxels-1);
+                    wt = 0;
+                }
+                off0[i] = i0*stride;
+                off1[i] = i1*stride;
+                weight[i] = wt;
+            }
+        }
+    }
+
+    /**
+     * Renders a rectangle of the output, splitting it in half along its
+     * longer side until the tiles are small enough.
+     */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] dest;
+        private final int width;
+        private final Axis u, v;
+        private final int base;
+        private final boolean blend;
+        private final int x0, y0, x1, y1;
+
+        TileTask(int[] dest, int width, Axis u, Axis v, int base, boolean blend,
+                int x0, int y0, int x1, int y1) {
+            this.dest = dest;
+            this.width = width;
+            this.u = u;
+            this.v = v;
+            this.base = base;
+            this.blend = blend;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            int w = x1 - x0;
+            int h = y1 - y0;
+            if(w*h > TILE_PIXELS) {
+                if(w >= h) {
+                    int mid = (x0 + x1) >>> 1;
+                    invokeAll(new TileTask(dest, width, u, v, base, blend, x0, y0, mid, y1),
+                              new TileTask(dest, width, u, v, base, blend, mid, y0, x1, y1));
+                } else {
+                    int mid = (y0 + y1) >>> 1;
+                    invokeAll(new TileTask(dest, width, u, v, base, blend, x0, y0, x1, mid),
+                              new TileTask(dest, width, u, v, base, blend, x0, mid, x1, y1));
+                }
+                return;
+            }
+
+            short[] data = volume.getData();
+            for(int y=y0; y<y1; y++) {
+                int out = y*width;
+                if(!blend) {
+                    int row = base + v.off0[y];
+                    for(int x=x0; x<x1; x++)
+                        dest[out + x] = PlaneRenderer.gray(data[row + u.off0[x]] & 0xffff);
+                    continue;
+                }
+
+                int wv = v.weight[y];
+                int rowA = base + v.off0[y], rowB = base + v.off1[y];
+                for(int x=x0; x<x1; x++)
+                    dest[out + x] = PlaneRenderer.gray(bilinear(data, rowA, rowB,
+                            u.off0[x], u.off1[x], u.weight[x], wv));
+            }
+        }
+    }
+
+    /**
+     * Blends four neighbouring samples.
+     * @param data Samples.
+     * @param rowA Offset of the first row.
+     * @param rowB Offset of the second row.
+     * @param colA Offset of the first column.
+     * @param colB Offset of the second column.
+     * @param wu Weight of the second column.
+     * @param wv Weight of the second row.
+     * @return Sample, 0-65535.
+     */
+    private static int bilinear(short[] data, int rowA, int rowB, int colA, int colB, int wu, int wv) {
+        int top = ((data[rowA + colA] & 0xffff)*(WEIGHT_ONE - wu) +
+                   (data[rowA + colB] & 0xffff)*wu) >> WEIGHT_BITS;
+        int bottom = ((data[rowB + colA] & 0xffff)*(WEIGHT_ONE - wu) +
+                      (data[rowB + colB] & 0xffff)*wu) >> WEIGHT_BITS;
+        return (top*(WEIGHT_ONE - wv) + bottom*wv) >> WEIGHT_BITS;
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Rendering engines for 3D reconstructions. These turn a Volume into images
+ * for the reconstruction views.
+ */
+package medimage.reconstruction;
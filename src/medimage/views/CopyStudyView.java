@@ -4,7 +4,19 @@
  */
 package medimage.views;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import medimage.models.Connection;
+import medimage.models.CopyProgress;
 import medimage.models.Study;
 
 /**
@@ -13,7 +25,102 @@ import medimage.models.Study;
  */
 public class CopyStudyView extends javax.swing.JDialog {
     
+    /**
+     * Copies the study in the background, showing a progress monitor.
+     */
+    private class CopyTask extends SwingWorker<Void, long[]> {
+        
+        private final Connection destConnection;
+        private final String name;
+        private final ProgressMonitor monitor;
+        private final Timer cancelPoller;
+        
+        /**
+         * Set on the event thread when the user cancels.
+         */
+        volatile boolean cancelled;
+        
+        /**
+         * Set when the dialog's Cancel button stops the copy, so the dialog
+         * closes once the copy has stopped rather than letting the user try
+         * again.
+         */
+        boolean closeWhenDone;
+        
+        CopyTask(Connection destConnection, String name) {
+            this.destConnection = destConnection;
+            this.name = name;
+            
+            int files = sourceStudy.getImages().size();
+            monitor = new ProgressMonitor(CopyStudyView.this, "Copying " + sourceStudy.getName() +
+                    " to " + name, "", 0, Math.max(files, 1));
+            monitor.setMillisToDecideToPopup(200);
+            
+            // ProgressMonitor can only be checked on the event thread.
+            cancelPoller = new Timer(100, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    if(monitor.isCanceled())
+                        cancelled = true;
+                }
+            });
+            cancelPoller.start();
+        }
+        
+        @Override
+        protected Void doInBackground() throws Exception {
+            destConnection.copyStudyInto(name, sourceStudy, new CopyProgress() {
+                @Override
+                public void progress(long bytesDone, long bytesTotal, int filesDone, int filesTotal) {
+                    publish(new long[] { bytesDone, bytesTotal, filesDone, filesTotal });
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return cancelled;
+                }
+            });
+            return null;
+        }
+        
+        @Override
+        protected void process(List<long[]> chunks) {
+            long[] p = chunks.get(chunks.size()-1);
+            monitor.setMaximum((int)p[3]);
+            monitor.setProgress((int)p[2]);
+            monitor.setNote(String.format("%d of %d images, %.1f of %.1f MB",
+                    p[2], p[3], p[0]/1048576.0, p[1]/1048576.0));
+        }
+        
+        @Override
+        protected void done() {
+            cancelPoller.stop();
+            monitor.close();
+            copyTask = null;
+            
+            try {
+                get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                if(!(ex.getCause() instanceof CancellationException)) {
+                    Logger.getLogger(CopyStudyView.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                    JOptionPane.showMessageDialog(CopyStudyView.this,
+                            "Couldn't copy study: " + ex.getCause().getMessage(),
+                            "MedImage", JOptionPane.ERROR_MESSAGE);
+                }
+                if(!closeWhenDone) {
+                    // Let the user try again.
+                    copyButton.setEnabled(true);
+                    return;
+                }
+            }
+            dispose();
+        }
+    }
+    
     private final Study sourceStudy;
+    private CopyTask copyTask;
     
     /**
      * Creates new form CopyStudyView
@@ -123,7 +230,12 @@ public class CopyStudyView extends javax.swing.JDialog {
      * @param evt 
      */
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
-        this.dispose();
+        if(copyTask != null) {
+            // Stop the copy; the task closes the dialog once it has stopped.
+            copyTask.closeWhenDone = true;
+            copyTask.cancelled = true;
+        } else
+            this.dispose();
     }//GEN-LAST:event_cancelButtonActionPerformed
     
     /**
@@ -139,8 +251,9 @@ public class CopyStudyView extends javax.swing.JDialog {
         if(name.equals(""))
             return; // No name specified.
         
-        destConnection.copyStudyInto(name, sourceStudy);
-        this.dispose();
+        copyButton.setEnabled(false);
+        copyTask = new CopyTask(destConnection, name);
+        copyTask.execute();
     }//GEN-LAST:event_copyButtonActionPerformed
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
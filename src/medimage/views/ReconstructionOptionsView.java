@@ -5,6 +5,7 @@
 
 package medimage.views;
 
+import medimage.TransferFunction;
 import medimage.models.Study;
 
 /**
@@ -16,16 +17,19 @@ public class ReconstructionOptionsView extends javax.swing.JDialog {
     
     private final java.awt.Frame parent;
     private final Study study;
+    private final TransferFunction displayTransform;
     
     /**
      * Creates new form ReconstructionOptionsView
      * @param parent
      * @param study
+     * @param displayTransform Windowing to show the reconstruction with.
      */
-    public ReconstructionOptionsView(java.awt.Frame parent, Study study) {
+    public ReconstructionOptionsView(java.awt.Frame parent, Study study, TransferFunction displayTransform) {
         super(parent, true);
         this.parent = parent;
         this.study = study;
+        this.displayTransform = displayTransform;
         initComponents();
     }
 
@@ -111,7 +115,8 @@ public class ReconstructionOptionsView extends javax.swing.JDialog {
 
     private void viewButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_viewButtonActionPerformed
         this.dispose();
-        ReconstructionView recon = new ReconstructionView(this.parent, this.study, xAxisRadio.isSelected());
+        ReconstructionView recon = new ReconstructionView(this.parent, this.study, xAxisRadio.isSelected(),
+                displayTransform);
         recon.setVisible(true);
     }//GEN-LAST:event_viewButtonActionPerformed
 
@@ -4,13 +4,29 @@
  */
 package medimage.views;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import java.awt.Point;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.ImageIcon;
-import medimage.models.Image;
+import javax.swing.JLabel;
+import javax.swing.SwingWorker;
+import medimage.TransferFunction;
 import medimage.models.Study;
+import medimage.models.Volume;
+import medimage.reconstruction.ObliqueSampler;
+import medimage.reconstruction.OrthogonalRenderer;
+import medimage.reconstruction.PlaneRenderer.Plane;
+import medimage.reconstruction.ProjectionRenderer.Mode;
+import medimage.reconstruction.Resampler.Interpolation;
 
 /**
  * View for reconstructions.
@@ -19,20 +35,102 @@ import medimage.models.Study;
 public class ReconstructionView extends javax.swing.JDialog {
     
     /**
-     * Clamps a value between two integers.
-     * @param v
-     * @param lower
-     * @param higher
-     * @return 
+     * Number of slices loaded for the first, coarse pass.
      */
-    private static int clamp(int v, int lower, int higher) {
-        return Math.min(Math.max(v, lower), higher);
+    private static final int PREVIEW_SLICES = 16;
+    
+    /**
+     * A slice converted to samples in the background, waiting to be copied
+     * into the volume.
+     */
+    private static class LoadedSlice {
+        /** Index of the slice in the study. */
+        final int z;
+        /** Samples, as a volume one slice thick. */
+        final Volume samples;
+        /** True if the slice also stands in for the slices up to the next one. */
+        final boolean preview;
+        
+        LoadedSlice(int z, Volume samples, boolean preview) {
+            this.z = z;
+            this.samples = samples;
+            this.preview = preview;
+        }
     }
     
-    // Colors
-    private final int COLOR_RED   = 0xffff0000;
-    private final int COLOR_GREEN = 0xff00ff00;
-    private final int COLOR_BLUE  = 0xff0000ff;
+    /**
+     * Fills the volume in the background as the study's images load.
+     * <p>
+     * Every step-th slice is loaded first, and copied over the slices after
+     * it, so a coarse preview of the whole volume appears early. The
+     * remaining slices then replace the copies as they arrive. The preview
+     * slices themselves are full resolution: each image has to be decoded
+     * whole anyway, and the planes are resampled to the display size.
+     * <p>
+     * Images are converted to samples on the worker thread, but only copied
+     * into the volume on the event thread, which is the only thread that
+     * renders it. A render never sees a slice that's partly copied.
+     */
+    private class LoadTask extends SwingWorker<Void, LoadedSlice> {
+        
+        private final List<Future<BufferedImage>> futures;
+        private final int[] order;
+        private final int step;
+        
+        LoadTask(List<Future<BufferedImage>> futures, int[] order, int step) {
+            this.futures = futures;
+            this.order = order;
+            this.step = step;
+        }
+        
+        @Override
+        protected Void doInBackground() throws Exception {
+            int n = futures.size();
+            try {
+                // The first slice was loaded by the constructor.
+                for(int i=1; i<order.length; i++) {
+                    int z = order[i];
+                    Volume samples = new Volume(source.getSize(Volume.X), source.getSize(Volume.Y), 1);
+                    samples.setSlice(0, futures.get(z).get());
+                    publish(new LoadedSlice(z, samples, i < (n+step-1)/step));
+                }
+            } finally {
+                for(Future<BufferedImage> f : futures)
+                    f.cancel(false);
+            }
+            return null;
+        }
+        
+        @Override
+        protected void process(List<LoadedSlice> chunks) {
+            int n = source.getSize(Volume.Z);
+            Set<Integer> changed = new HashSet<Integer>();
+            for(LoadedSlice s : chunks) {
+                // Preview slices stand in for the slices up to the next one.
+                int end = s.preview ? Math.min(s.z + step, n) : s.z + 1;
+                for(int z=s.z; z<end; z++) {
+                    source.copySlice(z, s.samples, 0);
+                    changed.add(isSagattal ? z : n-1-z);
+                }
+            }
+            for(Plane p : renderer.refreshSlices(isSagattal ? Volume.X : Volume.Y, changed))
+                labelFor(p).repaint();
+            updateOblique();
+        }
+        
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (CancellationException ex) {
+                // Dialog closed.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                Logger.getLogger(ReconstructionView.class.getName()).log(Level.SEVERE, null, ex.getCause());
+            }
+        }
+    }
     
     /**
      * Study that is being viewed.
@@ -40,133 +138,268 @@ public class ReconstructionView extends javax.swing.JDialog {
     private final Study study;
     
     /**
-     * Image data.
-     * Coordinates are data[x][y][z] with x going to the right, y going up,
+     * The study's images as loaded, one z slice per image.
+     */
+    private final Volume source;
+    
+    /**
+     * True if the study's slices are the x axis of data, rather than the
+     * flipped y axis.
+     */
+    private final boolean isSagattal;
+    
+    /**
+     * Image data, reoriented from source.
+     * Coordinates are (x, y, z) with x going to the right, y going up,
      * and z going out of the xy plane.
      */
-    private final int[][][] data;
+    private final Volume data;
+    
+    /**
+     * Renders the planes of the data, scaled for display.
+     */
+    private final OrthogonalRenderer renderer;
+    
+    /**
+     * Fills in the volume as the images load.
+     */
+    private LoadTask loadTask;
     
     /**
-     * Currently viewed slices.
+     * Renders the tilted plane.
      */
-    private int sliceX, sliceY, sliceZ;
+    private final ObliqueSampler obliqueSampler;
+    
+    /**
+     * Image the tilted plane is rendered into, and its pixel size in mm.
+     */
+    private final BufferedImage obliqueBuffer;
+    private final double obliquePixelSize;
+    
+    /**
+     * Tilt of the oblique plane away from the front plane, in radians, about
+     * the vertical and horizontal axes.
+     */
+    private double obliqueYaw, obliquePitch;
+    
+    /**
+     * Where the last drag event on the oblique plane was.
+     */
+    private Point dragPoint;
+    
+    /**
+     * Windowing the planes are shown with.
+     */
+    private final TransferFunction displayTransform;
     
     /**
      * Creates new form ReconstructionView
      * @param parent
      * @param study
      * @param isSagattal
+     * @param displayTransform Windowing to show the planes with.
      */
-    public ReconstructionView(java.awt.Frame parent, Study study, boolean isSagattal) {
+    public ReconstructionView(java.awt.Frame parent, Study study, boolean isSagattal,
+            TransferFunction displayTransform) {
         super(parent, true);
         initComponents();
         
         this.study = study;
+        this.displayTransform = displayTransform;
+        this.isSagattal = isSagattal;
         
-        List<Image> images = study.getImages();
-        
-        BufferedImage baseImg = images.get(0).getImageData();
+        // Reorient the study's volume (x along the image columns, y along the
+        // rows, z along the slices) to the reconstruction axes. This doesn't
+        // copy the data.
+        double[] spacing = study.getVoxelSpacing();
+        int n = study.getImages().size();
+        int step = Math.max(1, n/PREVIEW_SLICES);
+        int[] order = previewOrder(n, step);
+        List<Future<BufferedImage>> futures = study.loadImages(order);
+        Volume v = createVolume(futures, step);
+        source = spacing == null ? v : v.withSpacing(spacing);
         if(isSagattal)
-            data = new int[images.size()][baseImg.getWidth()][baseImg.getHeight()];
+            data = source.permute(Volume.Z, Volume.X, Volume.Y);
         else
-            data = new int[baseImg.getWidth()][images.size()][baseImg.getHeight()];
+            data = source.permute(Volume.X, Volume.Z, Volume.Y).flip(Volume.Y);
+        int maxCoord = Math.max(Math.max(data.getSize(Volume.X), data.getSize(Volume.Y)),
+                data.getSize(Volume.Z));
+        Interpolation interpolation = Interpolation.getDefault();
+        interpolationSelector.setSelectedIndex(interpolation.ordinal());
+        renderer = new OrthogonalRenderer(data, maxCoord, interpolation);
+        renderer.setTransferFunction(displayTransform);
         
-        for(int i=0; i<images.size(); i++) {
-            BufferedImage d = images.get(i).getImageData();
-            
-            if(isSagattal) {
-                for(int x=0; x<d.getWidth(); x++)
-                    for(int y=0; y<d.getHeight(); y++)
-                        data[i][x][y] = d.getRGB(x, y);
+        // The renderer updates these images in place, so the icons are set
+        // once and the labels only need repainting afterwards.
+        topImage.setIcon(new ImageIcon(renderer.getImage(Plane.TOP)));
+        frontImage.setIcon(new ImageIcon(renderer.getImage(Plane.FRONT)));
+        sideImage.setIcon(new ImageIcon(renderer.getImage(Plane.SIDE)));
+        topImage.setText("");
+        frontImage.setText("");
+        sideImage.setText("");
+        
+        // The oblique plane goes through the crosshairs, and starts out
+        // facing the same way as the front plane.
+        obliqueSampler = new ObliqueSampler(data);
+        obliqueBuffer = new BufferedImage(maxCoord, maxCoord, BufferedImage.TYPE_INT_ARGB);
+        obliquePixelSize = Math.max(Math.max(data.getExtent(Volume.X), data.getExtent(Volume.Y)),
+                data.getExtent(Volume.Z))/maxCoord;
+        obliqueImage.setIcon(new ImageIcon(obliqueBuffer));
+        obliqueImage.setText("");
+        MouseAdapter tilt = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragPoint = e.getPoint();
             }
-            else {
-                for(int x=0; x<d.getWidth(); x++)
-                    for(int y=0; y<d.getHeight(); y++)
-                        data[x][images.size()-i-1][y] = d.getRGB(x, y);
+            
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if(dragPoint == null)
+                    return;
+                // Half a degree per pixel.
+                obliqueYaw += Math.toRadians((e.getX() - dragPoint.x)*0.5);
+                obliquePitch += Math.toRadians((e.getY() - dragPoint.y)*0.5);
+                obliquePitch = Math.min(Math.max(obliquePitch, -Math.PI/2), Math.PI/2);
+                dragPoint = e.getPoint();
+                updateOblique();
             }
-        }
+        };
+        obliqueImage.addMouseListener(tilt);
+        obliqueImage.addMouseMotionListener(tilt);
+        updateOblique();
+        this.pack();
         
-        updateUI();
+        loadTask = new LoadTask(futures, order, step);
+        loadTask.execute();
     }
     
     /**
-     * Rescales an image. This scales an image to a square with size equal to
-     * the maximum dimension of the 3D image data.
-     * @param img Image to scale
-     * @return Scaled version of image
+     * Orders the slices so that every step-th slice comes first.
+     * @param n Number of slices.
+     * @param step Distance between the slices of the preview.
+     * @return Slice indices, starting with 0.
      */
-    private BufferedImage scaleImage(BufferedImage img) {
-        int maxCoord = Math.max(Math.max(data.length, data[0].length), data[0][0].length);
-        
-        int w = img.getWidth();
-        int h = img.getHeight();
-        BufferedImage after = new BufferedImage(maxCoord, maxCoord, BufferedImage.TYPE_INT_ARGB);
-        AffineTransform at = new AffineTransform();
-        at.scale(maxCoord/(double)w, maxCoord/(double)h);
-        AffineTransformOp scaleOp = new AffineTransformOp(at, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-        after = scaleOp.filter(img, after);
-        return after;
+    private static int[] previewOrder(int n, int step) {
+        int[] order = new int[n];
+        int i = 0;
+        for(int z=0; z<n; z += step)
+            order[i++] = z;
+        for(int z=0; z<n; z++)
+            if(z % step != 0)
+                order[i++] = z;
+        return order;
     }
     
     /**
-     * Updates the UI.
+     * Creates the volume, sized from the first image. Only the first image is
+     * waited for; it fills the slices up to the next preview slice.
+     * @param futures Images being loaded.
+     * @param step Distance between the slices of the preview.
+     * @return Volume.
      */
-    private void updateUI() {
-        BufferedImage top = new BufferedImage(data.length, data[0][0].length, BufferedImage.TYPE_INT_ARGB);
-        BufferedImage front = new BufferedImage(data.length, data[0].length, BufferedImage.TYPE_INT_ARGB);
-        BufferedImage side = new BufferedImage(data[0][0].length, data[0].length, BufferedImage.TYPE_INT_ARGB);
-        
-        // Construct top view from data.
-        for(int x=0; x<data.length; x++)
-            for(int z=0; z<data[0][0].length; z++) {
-                int color;
-                if(x == sliceX)
-                    color = COLOR_RED;
-                else if(z == sliceZ)
-                    color = COLOR_BLUE;
-                else
-                    color = data[x][sliceY][z];
-                top.setRGB(x, z, color);
-            }
-        
-        // Construct front view.
-        for(int x=0; x<data.length; x++)
-            for(int y=0; y<data[0].length; y++) {
-                int color;
-                if(x == sliceX)
-                    color = COLOR_RED;
-                else if(y == sliceY)
-                    color = COLOR_GREEN;
-                else
-                    color = data[x][y][sliceZ];
-                front.setRGB(x, y, color);
-            }
-        
-        // Construct side view.
-        for(int y=0; y<data[0].length; y++)
-            for(int z=0; z<data[0][0].length; z++) {
-                int color;
-                if(y == sliceY)
-                    color = COLOR_GREEN;
-                else if(z == sliceZ)
-                    color = COLOR_BLUE;
-                else
-                    color = data[sliceX][y][z];
-                side.setRGB(z, y, color);
-            }
-        
-        
-        
-        // Display images
-        topImage.setIcon(new ImageIcon(scaleImage(top)));
-        frontImage.setIcon(new ImageIcon(scaleImage(front)));
-        sideImage.setIcon(new ImageIcon(scaleImage(side)));
-        
-        topImage.setText("");
-        frontImage.setText("");
-        sideImage.setText("");
+    private static Volume createVolume(List<Future<BufferedImage>> futures, int step) {
+        BufferedImage first;
+        try {
+            first = futures.get(0).get();
+        } catch (InterruptedException ex) {
+            for(Future<BufferedImage> f : futures)
+                f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading images.", ex);
+        } catch (ExecutionException ex) {
+            for(Future<BufferedImage> f : futures)
+                f.cancel(false);
+            throw new RuntimeException("Couldn't load image.", ex.getCause());
+        }
         
-        this.pack();
+        int n = futures.size();
+        Volume v = new Volume(first.getWidth(), first.getHeight(), n);
+        v.setSlice(0, first);
+        for(int z=1; z<Math.min(step, n); z++)
+            v.copySlice(0, z);
+        return v;
+    }
+    
+    /**
+     * Closes the dialog, and stops loading the volume if it hasn't finished.
+     */
+    @Override
+    public void dispose() {
+        if(loadTask != null)
+            loadTask.cancel(true);
+        super.dispose();
+    }
+    
+    /**
+     * Moves the slice along an axis and repaints the planes that changed.
+     * @param axis Volume.X, Y or Z.
+     * @param delta Number of slices to move.
+     */
+    private void step(int axis, int delta) {
+        Set<Plane> changed = renderer.setSlice(axis, renderer.getSlice(axis) + delta);
+        for(Plane p : changed)
+            labelFor(p).repaint();
+        if(!changed.isEmpty())
+            updateOblique();
+    }
+    
+    /**
+     * Renders the oblique plane through the current slices.
+     */
+    private void updateOblique() {
+        double[] origin = new double[3];
+        for(int a=0; a<3; a++)
+            origin[a] = renderer.getSlice(a)*data.getSpacing(a);
+        double[] normal = {
+            Math.sin(obliqueYaw)*Math.cos(obliquePitch),
+            Math.sin(obliquePitch),
+            Math.cos(obliqueYaw)*Math.cos(obliquePitch)
+        };
+        obliqueSampler.render(origin, normal, obliquePixelSize, renderer.getInterpolation(), obliqueBuffer);
+        displayTransform.apply(obliqueBuffer, obliqueBuffer);
+        obliqueImage.repaint();
+    }
+    
+    /**
+     * Applies the projection and slab thickness chosen in the controls to the
+     * orthogonal planes.
+     */
+    private void updateProjection() {
+        // The controls fire while initComponents is still setting them up.
+        if(renderer == null)
+            return;
+        int index = projectionSelector.getSelectedIndex();
+        Mode mode = index <= 0 ? null : Mode.values()[index-1];
+        renderer.setProjection(mode, (Integer)slabSpinner.getValue());
+        topImage.repaint();
+        frontImage.repaint();
+        sideImage.repaint();
+    }
+    
+    /**
+     * Applies the interpolation chosen in the controls to all of the views.
+     */
+    private void updateInterpolation() {
+        if(renderer == null)
+            return;
+        renderer.setInterpolation(Interpolation.values()[interpolationSelector.getSelectedIndex()]);
+        topImage.repaint();
+        frontImage.repaint();
+        sideImage.repaint();
+        updateOblique();
+    }
+    
+    /**
+     * Gets the label showing a plane.
+     * @param p Plane.
+     * @return Label.
+     */
+    private JLabel labelFor(Plane p) {
+        switch(p) {
+            case TOP: return topImage;
+            case FRONT: return frontImage;
+            default: return sideImage;
+        }
     }
     
     /**
@@ -191,6 +424,15 @@ public class ReconstructionView extends javax.swing.JDialog {
         sideImage = new javax.swing.JLabel();
         sideScrollLeftButton = new javax.swing.JButton();
         sideScrollRightButton = new javax.swing.JButton();
+        javax.swing.JPanel obliqueImageContainer = new javax.swing.JPanel();
+        obliqueImage = new javax.swing.JLabel();
+        obliqueResetButton = new javax.swing.JButton();
+        javax.swing.JLabel projectionLabel = new javax.swing.JLabel();
+        projectionSelector = new javax.swing.JComboBox<String>();
+        javax.swing.JLabel slabLabel = new javax.swing.JLabel();
+        slabSpinner = new javax.swing.JSpinner();
+        javax.swing.JLabel interpolationLabel = new javax.swing.JLabel();
+        interpolationSelector = new javax.swing.JComboBox<String>();
         exitButton = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
@@ -330,6 +572,69 @@ public class ReconstructionView extends javax.swing.JDialog {
 
         imagesContainer.add(sideImageContainer);
 
+        obliqueImage.setText("<image>");
+        obliqueImage.setToolTipText("Drag to tilt the plane");
+
+        obliqueResetButton.setText("Reset");
+        obliqueResetButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                obliqueResetButtonActionPerformed(evt);
+            }
+        });
+
+        javax.swing.GroupLayout obliqueImageContainerLayout = new javax.swing.GroupLayout(obliqueImageContainer);
+        obliqueImageContainer.setLayout(obliqueImageContainerLayout);
+        obliqueImageContainerLayout.setHorizontalGroup(
+            obliqueImageContainerLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(obliqueImageContainerLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(obliqueImageContainerLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(obliqueImage, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, obliqueImageContainerLayout.createSequentialGroup()
+                        .addGap(0, 0, Short.MAX_VALUE)
+                        .addComponent(obliqueResetButton)))
+                .addContainerGap())
+        );
+        obliqueImageContainerLayout.setVerticalGroup(
+            obliqueImageContainerLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(obliqueImageContainerLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(obliqueImage, javax.swing.GroupLayout.DEFAULT_SIZE, 64, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(obliqueResetButton)
+                .addContainerGap())
+        );
+
+        imagesContainer.add(obliqueImageContainer);
+
+        projectionLabel.setText("Projection:");
+
+        projectionSelector.setModel(new javax.swing.DefaultComboBoxModel<String>(new String[] { "Single slice", "Maximum (MIP)", "Minimum (MinIP)", "Average (AvgIP)" }));
+        projectionSelector.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                projectionSelectorActionPerformed(evt);
+            }
+        });
+
+        slabLabel.setText("Slab:");
+
+        slabSpinner.setModel(new javax.swing.SpinnerNumberModel(10, 1, 9999, 1));
+        slabSpinner.setToolTipText("Number of slices projected");
+        slabSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                slabSpinnerStateChanged(evt);
+            }
+        });
+
+        interpolationLabel.setText("Interpolation:");
+
+        interpolationSelector.setModel(new javax.swing.DefaultComboBoxModel<String>(new String[] { "Nearest", "Bilinear" }));
+        interpolationSelector.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                interpolationSelectorActionPerformed(evt);
+            }
+        });
+
         exitButton.setText("Exit");
         exitButton.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -345,7 +650,18 @@ public class ReconstructionView extends javax.swing.JDialog {
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(imagesContainer, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(projectionLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(projectionSelector, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                        .addComponent(slabLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(slabSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 60, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                        .addComponent(interpolationLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(interpolationSelector, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addGap(0, 0, Short.MAX_VALUE)
                         .addComponent(exitButton)))
                 .addContainerGap())
@@ -356,7 +672,14 @@ public class ReconstructionView extends javax.swing.JDialog {
                 .addContainerGap()
                 .addComponent(imagesContainer, javax.swing.GroupLayout.DEFAULT_SIZE, 239, Short.MAX_VALUE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
-                .addComponent(exitButton)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(projectionLabel)
+                    .addComponent(projectionSelector, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(slabLabel)
+                    .addComponent(slabSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(interpolationLabel)
+                    .addComponent(interpolationSelector, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(exitButton))
                 .addContainerGap())
         );
 
@@ -364,35 +687,47 @@ public class ReconstructionView extends javax.swing.JDialog {
     }// </editor-fold>//GEN-END:initComponents
 
     private void topScrollLeftButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_topScrollLeftButtonActionPerformed
-        sliceY = clamp(sliceY-1, 0, data[0].length-1);
-        updateUI();
+        step(Volume.Y, -1);
     }//GEN-LAST:event_topScrollLeftButtonActionPerformed
 
     private void topScrollRightButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_topScrollRightButtonActionPerformed
-        sliceY = clamp(sliceY+1, 0, data[0].length-1);
-        updateUI();
+        step(Volume.Y, 1);
     }//GEN-LAST:event_topScrollRightButtonActionPerformed
 
     private void frontScrollLeftButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_frontScrollLeftButtonActionPerformed
-        sliceZ = clamp(sliceZ-1, 0, data[0][0].length-1);
-        updateUI();
+        step(Volume.Z, -1);
     }//GEN-LAST:event_frontScrollLeftButtonActionPerformed
 
     private void frontScrollRightButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_frontScrollRightButtonActionPerformed
-        sliceZ = clamp(sliceZ+1, 0, data[0][0].length-1);
-        updateUI();
+        step(Volume.Z, 1);
     }//GEN-LAST:event_frontScrollRightButtonActionPerformed
 
     private void sideScrollLeftButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sideScrollLeftButtonActionPerformed
-        sliceX = clamp(sliceX-1, 0, data.length-1);
-        updateUI();
+        step(Volume.X, -1);
     }//GEN-LAST:event_sideScrollLeftButtonActionPerformed
 
     private void sideScrollRightButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sideScrollRightButtonActionPerformed
-        sliceX = clamp(sliceX+1, 0, data.length-1);
-        updateUI();
+        step(Volume.X, 1);
     }//GEN-LAST:event_sideScrollRightButtonActionPerformed
 
+    private void obliqueResetButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_obliqueResetButtonActionPerformed
+        obliqueYaw = 0;
+        obliquePitch = 0;
+        updateOblique();
+    }//GEN-LAST:event_obliqueResetButtonActionPerformed
+
+    private void projectionSelectorActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_projectionSelectorActionPerformed
+        updateProjection();
+    }//GEN-LAST:event_projectionSelectorActionPerformed
+
+    private void slabSpinnerStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_slabSpinnerStateChanged
+        updateProjection();
+    }//GEN-LAST:event_slabSpinnerStateChanged
+
+    private void interpolationSelectorActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_interpolationSelectorActionPerformed
+        updateInterpolation();
+    }//GEN-LAST:event_interpolationSelectorActionPerformed
+
     private void exitButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exitButtonActionPerformed
         this.dispose();
     }//GEN-LAST:event_exitButtonActionPerformed
@@ -400,8 +735,13 @@ public class ReconstructionView extends javax.swing.JDialog {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton exitButton;
     private javax.swing.JLabel frontImage;
+    private javax.swing.JLabel obliqueImage;
+    private javax.swing.JButton obliqueResetButton;
+    private javax.swing.JComboBox<String> projectionSelector;
+    private javax.swing.JSpinner slabSpinner;
     private javax.swing.JButton frontScrollLeftButton;
     private javax.swing.JButton frontScrollRightButton;
+    private javax.swing.JComboBox<String> interpolationSelector;
     private javax.swing.JLabel sideImage;
     private javax.swing.JButton sideScrollLeftButton;
     private javax.swing.JButton sideScrollRightButton;
@@ -7,13 +7,17 @@ package medimage.views;
 
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
 import java.util.List;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 import medimage.MedImage;
 import medimage.models.Connection;
 import medimage.models.DisplayState;
+import medimage.models.StudiesListener;
 import medimage.models.Study;
 import medimage.models.local.LocalConnection;
 
@@ -24,17 +28,43 @@ import medimage.models.local.LocalConnection;
 public class StudiesView extends javax.swing.JFrame {
     
     /**
-     * Studies -> TreeModel adapter
+     * Studies -> TreeModel adapter.
+     * Keeps its own copy of the connection's study list, which is updated on
+     * the event thread as the connection reports added and removed studies.
      */
-    private class StudiesTreeModel implements TreeModel {
+    private class StudiesTreeModel implements TreeModel, StudiesListener {
+        
+        private static final String ROOT = "Root";
+        
+        private final Connection conn;
+        private final List<Study> studies;
+        private final List<TreeModelListener> listeners = new ArrayList<TreeModelListener>();
+        
+        /**
+         * Creates a model and starts listening for changes to the connection.
+         * @param conn Connection to list studies of.
+         */
+        StudiesTreeModel(Connection conn) {
+            this.conn = conn;
+            conn.addStudiesListener(this);
+            studies = new ArrayList<Study>(conn.getStudies());
+        }
+        
+        /**
+         * Stops listening for changes to the connection.
+         */
+        void dispose() {
+            conn.removeStudiesListener(this);
+        }
+        
         @Override
         public Object getRoot() {
-            return "Root";
+            return ROOT;
         }
         
         private List<Study> get(Object parent) {
-            if(parent.equals("Root"))
-                return connection.getStudies();
+            if(parent.equals(ROOT))
+                return studies;
             return ((Study)parent).getStudies();
         }
 
@@ -65,22 +95,68 @@ public class StudiesView extends javax.swing.JFrame {
 
         @Override
         public void addTreeModelListener(TreeModelListener l) {
-            // Don't need this
+            listeners.add(l);
         }
 
         @Override
         public void removeTreeModelListener(TreeModelListener l) {
-            // Don't need this
+            listeners.remove(l);
+        }
+
+        @Override
+        public void studyAdded(final Study study) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if(studies.contains(study))
+                        return; // Already in the snapshot.
+                    
+                    // Keep the list sorted by name.
+                    int i = 0;
+                    while(i < studies.size() && studies.get(i).getName().compareTo(study.getName()) < 0)
+                        i++;
+                    studies.add(i, study);
+                    
+                    TreeModelEvent e = new TreeModelEvent(StudiesTreeModel.this,
+                            new Object[] { ROOT }, new int[] { i }, new Object[] { study });
+                    for(TreeModelListener l : new ArrayList<TreeModelListener>(listeners))
+                        l.treeNodesInserted(e);
+                }
+            });
+        }
+
+        @Override
+        public void studyRemoved(final Study study) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    int i = studies.indexOf(study);
+                    if(i < 0)
+                        return;
+                    studies.remove(i);
+                    
+                    TreeModelEvent e = new TreeModelEvent(StudiesTreeModel.this,
+                            new Object[] { ROOT }, new int[] { i }, new Object[] { study });
+                    for(TreeModelListener l : new ArrayList<TreeModelListener>(listeners))
+                        l.treeNodesRemoved(e);
+                }
+            });
         }
     }
     
     private Connection connection;
+    private StudiesTreeModel treeModel;
     
     /**
      * Creates new form StudiesView
      */
     public StudiesView() {
         initComponents();
+        
+        // Only lay out the rows that are visible, so a root with thousands of
+        // studies doesn't list every study directory up front.
+        studiesList.setRowHeight(studiesList.getFontMetrics(studiesList.getFont()).getHeight() + 2);
+        studiesList.setLargeModel(true);
     }
     
     /**
@@ -117,7 +193,14 @@ public class StudiesView extends javax.swing.JFrame {
      * Refreshes the studies list.
      */
     private void updateStudiesUI() {
-        this.studiesList.setModel(new StudiesTreeModel());
+        // The model keeps itself up to date, so only replace it if the
+        // connection changed.
+        if(treeModel != null && treeModel.conn == connection)
+            return;
+        if(treeModel != null)
+            treeModel.dispose();
+        treeModel = new StudiesTreeModel(connection);
+        this.studiesList.setModel(treeModel);
     }
     
     /**
@@ -136,8 +219,7 @@ public class StudiesView extends javax.swing.JFrame {
         if(state == null) // No previous display state
             MedImage.getImageView().viewImages(connection, study, 0, null, null);
         else
-            MedImage.getImageView().viewImages(connection, study,
-                    state.getImageIndex(), state.getCurrState(), state.getCommands());
+            MedImage.getImageView().viewImages(connection, study, state);
     }
     
     /**
@@ -1,9 +1,12 @@
 
 package medimage.views;
 
-import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import medimage.Command;
-import medimage.models.Image;
+import medimage.TransferFunction;
+import medimage.models.DisplayStateCodec;
 import medimage.models.Study;
 import medimage.views.improvedimageview.ImageView;
 
@@ -12,55 +15,100 @@ import medimage.views.improvedimageview.ImageView;
  * @author col32
  */
 public class WindowingOptionsView extends javax.swing.JDialog {
-    /**
-     * Clamps a value between two integers.
-     * @param v
-     * @param lower
-     * @param higher
-     * @return 
-     */
-    private static int clamp(int v, int lower, int higher) {
-        return Math.min(Math.max(v, lower), higher);
-    }
-    
     private final ImageView imgView;
     
     public static class WindowingCommand extends Command {
+        private static final long serialVersionUID = -2257560979477846550L;
+        
         private final int lower, higher;
+        /**
+         * Lookup table for a combination of windows, or null for a single
+         * window from lower to higher.
+         */
+        private final TransferFunction function;
+        
+        /**
+         * Binary codec for saving windowing commands in display states.
+         * MedImage registers it at startup under tag 1.
+         */
+        public static final DisplayStateCodec.CommandCodec<WindowingCommand> CODEC =
+                new DisplayStateCodec.CommandCodec<WindowingCommand>() {
+            @Override
+            public void write(WindowingCommand c, DataOutput out) throws IOException {
+                out.writeBoolean(c.function != null);
+                if(c.function != null)
+                    c.function.writeTo(out);
+                else {
+                    out.writeShort(c.lower);
+                    out.writeShort(c.higher);
+                }
+            }
+
+            @Override
+            public WindowingCommand read(DataInput in) throws IOException {
+                if(in.readBoolean())
+                    return new WindowingCommand(TransferFunction.readFrom(in));
+                int lower = in.readShort();
+                return new WindowingCommand(lower, in.readShort());
+            }
+        };
 
         public WindowingCommand(int lower, int higher) {
             this.lower = lower;
             this.higher = higher;
+            this.function = null;
         }
         
-        private int scale(int color) {
-            double slope = 255.0/(higher-lower);
-            return clamp((int)(slope*color-slope*lower), 0, 255);
+        /**
+         * Creates a command that applies a lookup table, such as several
+         * windows combined.
+         * @param function Lookup table.
+         */
+        public WindowingCommand(TransferFunction function) {
+            this.lower = 0;
+            this.higher = 0;
+            this.function = function;
         }
         
+        /**
+         * Gets the lookup table that this command applies.
+         * @return Window function.
+         */
+        public TransferFunction getTransferFunction() {
+            if(function != null)
+                return function;
+            return TransferFunction.window(lower, higher);
+        }
+        
+        /**
+         * Combines consecutive windows into one lookup table, so they're
+         * applied in a single pass.
+         * @param next Command applied after this one.
+         * @return Combined command, or null if next isn't a windowing command.
+         */
+        @Override
+        public Command combine(Command next) {
+            if(!(next instanceof WindowingCommand))
+                return null;
+            return new WindowingCommand(getTransferFunction().then(
+                    ((WindowingCommand)next).getTransferFunction()));
+        }
+        
+        /**
+         * Windows the study. The window is applied as the images are
+         * displayed, so only the images on screen are processed.
+         * @param view View showing the study.
+         * @param study Study.
+         */
         @Override
         public void apply(ImageView view, Study study) {
-            for(Image i : study.getImages()) {
-                BufferedImage origImg = i.getImageData();
-                BufferedImage img = new BufferedImage(origImg.getColorModel(), origImg.copyData(null), origImg.isAlphaPremultiplied(), null);
-                for(int x=0; x<img.getWidth(); x++)
-                    for(int y=0; y<img.getHeight(); y++) {
-                        int color = origImg.getRGB(x, y);
-                        int newColor = scale(color & 0xff) |
-                                (scale((color >> 8) & 0xff) << 8) |
-                                (scale((color >> 16) & 0xff) << 16) |
-                                ((color << 24) & 0xff);
-                        img.setRGB(x, y, newColor);
-                    }
-                i.pushModifiedImage(img);
-            }
+            view.pushDisplayTransform(getTransferFunction());
             view.updateImageUI();
         }
 
         @Override
         public void undo(ImageView view, Study study) {
-            for(Image i : study.getImages())
-                i.popModifiedImage();
+            view.popDisplayTransform();
             view.updateImageUI();
         }
 
@@ -69,6 +117,7 @@ public class WindowingOptionsView extends javax.swing.JDialog {
             int hash = 5;
             hash = 61 * hash + this.lower;
             hash = 61 * hash + this.higher;
+            hash = 61 * hash + (this.function == null ? 0 : this.function.hashCode());
             return hash;
         }
 
@@ -84,7 +133,11 @@ public class WindowingOptionsView extends javax.swing.JDialog {
             if (this.lower != other.lower) {
                 return false;
             }
-            return this.higher == other.higher;
+            if (this.higher != other.higher) {
+                return false;
+            }
+            return this.function == null ? other.function == null :
+                    this.function.equals(other.function);
         }
     }
     
@@ -9,17 +9,20 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.ArrayList;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import medimage.Command;
 import medimage.ImageIterator;
+import medimage.ImagePrefetcher;
 import medimage.MedImage;
+import medimage.TransferFunction;
 import medimage.models.Connection;
+import medimage.models.DisplayJournal;
 import medimage.models.DisplayState;
 import medimage.models.Image;
 import medimage.models.Study;
@@ -40,6 +43,29 @@ public class ImageView extends JFrame {
     private ImagePanel imagePanel;
     private Deque<Command> executedCommands;
     private Deque<Command> redoCommands;
+    private final ImagePrefetcher prefetcher = new ImagePrefetcher();
+    
+    /**
+     * Transfer functions applied to the images when they're displayed, in the
+     * order they were added, and all of them composed.
+     */
+    private final Deque<TransferFunction> displayTransforms = new LinkedList<TransferFunction>();
+    private TransferFunction displayTransform = TransferFunction.identity();
+    /**
+     * True while viewImages is applying saved commands.
+     */
+    private boolean replaying;
+    /**
+     * Number of commands at the bottom of the undo stack that were restored
+     * with their display transform rather than applied.
+     */
+    private int restoredCommands;
+    private final RenderedImageCache renderedImages = new RenderedImageCache();
+    /**
+     * Journal recording the display state for crash recovery, or null if the
+     * study doesn't keep one.
+     */
+    private DisplayJournal journal;
     
     /**
      * Command that represents a user scrolling between images.
@@ -183,11 +209,44 @@ public class ImageView extends JFrame {
      * @param commands Commands to execute upon viewing
      */
     public void viewImages(Connection conn, Study study, int index, DisplayState.States state, List<Command> commands) {
+        viewImages(conn, study, index, state, commands, null);
+    }
+    
+    /**
+     * Updates the UI to view a study at a saved display state and makes the
+     * frame visible. If the state holds the display transform its commands
+     * result in, that's used instead of replaying them.
+     * @param conn Connection of the study
+     * @param study Study to view images from
+     * @param state Saved display state.
+     */
+    public void viewImages(Connection conn, Study study, DisplayState state) {
+        viewImages(conn, study, state.getImageIndex(), state.getCurrState(),
+                state.getCommands(), state.getDisplayTransform());
+    }
+    
+    /**
+     * Updates the UI to view a list of images and makes the frame visible.
+     * @param conn Connection of the study
+     * @param study Study to view images from
+     * @param index Index of image to view.
+     * @param state Whether to open in single image mode or 2x2 image mode.
+     * @param commands Commands to execute upon viewing
+     * @param restored Display transform the commands result in, or null to
+     * replay them.
+     */
+    private void viewImages(Connection conn, Study study, int index, DisplayState.States state,
+            List<Command> commands, TransferFunction restored) {
         this.conn = conn;
         this.study = study;
         
         executedCommands = new LinkedList<Command>();
         redoCommands = new LinkedList<Command>();
+        displayTransforms.clear();
+        displayTransform = TransferFunction.identity();
+        restoredCommands = 0;
+        renderedImages.clear();
+        journal = null;
         
         ImagePanel p;
         if(state == null || state == DisplayState.States.SINGLE_IMAGE)
@@ -198,9 +257,26 @@ public class ImageView extends JFrame {
         
         this.iterator = imagePanel.createIterator(study.getImages(), index);
         
-        if(commands != null)
+        if(commands != null && restored != null) {
+            // Keep the commands for undo, but show the saved result.
             for(Command c : commands)
-                this.addCommand(c);
+                this.addCommand(c, false);
+            displayTransform = restored;
+            restoredCommands = commands.size();
+        } else if(commands != null) {
+            // Only show the result once everything has been applied.
+            replaying = true;
+            try {
+                for(Command c : Command.combineAll(commands))
+                    this.addCommand(c);
+            } finally {
+                replaying = false;
+            }
+        }
+        
+        journal = study.openJournal();
+        if(journal != null)
+            journal.begin(constructDisplayState(false));
         
         this.updateImageUI();
         this.pack();
@@ -217,6 +293,7 @@ public class ImageView extends JFrame {
         if(exec) c.apply(this, study);
         executedCommands.addLast(c);
         redoCommands.clear();
+        journalCommand(c, true);
     }
     
     /**
@@ -231,10 +308,12 @@ public class ImageView extends JFrame {
      * Undoes the last command.
      */
     public void undoCommand() {
+        expandRestoredCommands();
         Command c = executedCommands.pollLast();
         if(c != null) {
             c.undo(this, study);
             redoCommands.addLast(c);
+            journalCommand(c, false);
         }
     }
     
@@ -246,9 +325,106 @@ public class ImageView extends JFrame {
         if(c != null) {
             c.apply(this, study);
             executedCommands.addLast(c);
+            journalCommand(c, true);
         }
     }
     
+    /**
+     * Records a command being applied or undone in the journal.
+     * @param c Command.
+     * @param applied True if it was applied, false if it was undone.
+     */
+    private void journalCommand(Command c, boolean applied) {
+        if(journal == null)
+            return;
+        if(isSaved(c)) {
+            if(applied)
+                journal.add(c);
+            else
+                journal.removeLast();
+        } else
+            journal.view(getDisplayMode(), iterator.getIndex());
+        
+        if(journal.needsCompaction())
+            journal.compact(constructDisplayState(false));
+    }
+    
+    /**
+     * Checks whether a command is saved in the display state's commands.
+     * Scrolling and display mode changes are saved as the image index and
+     * display mode instead.
+     * @param c Command.
+     * @return True if it's saved.
+     */
+    private static boolean isSaved(Command c) {
+        return !(c instanceof ScrollCommand) && !(c instanceof ChangeDisplayModeCommand);
+    }
+    
+    /**
+     * Gets the current display mode.
+     * @return Display mode.
+     */
+    private DisplayState.States getDisplayMode() {
+        return imagePanel instanceof SingleImagePanel ?
+                DisplayState.States.SINGLE_IMAGE :
+                DisplayState.States.QUAD_IMAGE;
+    }
+    
+    /**
+     * Applies the commands that were restored from a display state without
+     * being applied, so they can be undone. The display transform is
+     * rebuilt underneath any transforms added since.
+     */
+    private void expandRestoredCommands() {
+        if(restoredCommands == 0)
+            return;
+        List<TransferFunction> added = new ArrayList<TransferFunction>(displayTransforms);
+        displayTransforms.clear();
+        displayTransform = TransferFunction.identity();
+        replaying = true;
+        try {
+            Iterator<Command> it = executedCommands.iterator();
+            for(int i=0; i<restoredCommands; i++)
+                it.next().apply(this, study);
+        } finally {
+            replaying = false;
+        }
+        restoredCommands = 0;
+        for(TransferFunction f : added)
+            pushDisplayTransform(f);
+    }
+    
+    /**
+     * Adds a transfer function to apply to the images when they're displayed.
+     * It's applied after any already added. Call updateImageUI to show it.
+     * @param f Transfer function.
+     */
+    public void pushDisplayTransform(TransferFunction f) {
+        displayTransforms.addLast(f);
+        displayTransform = displayTransform.then(f);
+    }
+    
+    /**
+     * Removes the last transfer function added with pushDisplayTransform.
+     * Call updateImageUI to show the change.
+     */
+    public void popDisplayTransform() {
+        if(displayTransforms.pollLast() == null)
+            return;
+        TransferFunction f = TransferFunction.identity();
+        for(TransferFunction t : displayTransforms)
+            f = f.then(t);
+        displayTransform = f;
+    }
+    
+    /**
+     * Gets the transfer function applied to images when they're displayed.
+     * @return All the added transfer functions, composed.
+     */
+    public TransferFunction getDisplayTransform() {
+        return displayTransform;
+    }
+    
     /**
      * Sets the image panel to use.
      * @param panel 
@@ -263,19 +439,25 @@ public class ImageView extends JFrame {
      * Updates the UI with the current contents of the image iterator.
      */
     public void updateImageUI() {
+        if(replaying)
+            return;
         JLabel[] labels = imagePanel.getImageContainers();
         Image[] imgs = this.iterator.getImages();
         for(int i=0; i<labels.length; i++) {
             if(imgs[i] == null)
                 labels[i].setIcon(null);
             else
-                labels[i].setIcon(new ImageIcon(imgs[i].getImageData()));
+                labels[i].setIcon(renderedImages.get(imgs[i], displayTransform,
+                        labels[i].getGraphicsConfiguration()));
             labels[i].setText("");
         }
         this.setTitle(study.getName());
         
         this.saveButton.setEnabled(!imagePanel.isReadOnly());
         this.switchDisplayModeButton.setEnabled(!imagePanel.isReadOnly());
+        
+        // Start loading the images the user is scrolling towards.
+        prefetcher.update(iterator);
     }
     
     /**
@@ -283,28 +465,40 @@ public class ImageView extends JFrame {
      * @return 
      */
     private DisplayState constructDisplayState() {
-        DisplayState.States s = imagePanel instanceof SingleImagePanel ?
-                DisplayState.States.SINGLE_IMAGE :
-                DisplayState.States.QUAD_IMAGE;
-        
+        return constructDisplayState(true);
+    }
+    
+    /**
+     * Creates a display state from the current GUI state.
+     * @param combine True to combine the commands where possible. The journal
+     * needs them as they are on the undo stack.
+     * @return 
+     */
+    private DisplayState constructDisplayState(boolean combine) {
         List<Command> filteredCommands = new ArrayList<Command>();
         for(Command c : executedCommands)
-            if(!(c instanceof ScrollCommand) && !(c instanceof ChangeDisplayModeCommand))
+            if(isSaved(c))
                 filteredCommands.add(c);
         
-        return new DisplayState(s, iterator.getIndex(), filteredCommands);
+        return new DisplayState(getDisplayMode(), iterator.getIndex(),
+                combine ? Command.combineAll(filteredCommands) : filteredCommands,
+                displayTransform);
     }
     
     /**
-     * Asks the user to save the display state, if needed.
+     * Asks the user to save the display state, if needed. Unless the user
+     * cancels, the journal is closed, since the state has either been saved
+     * or deliberately discarded.
      * @return True if user clicked 'yes' or 'no', or if the state hasn't changed.
      * False if the user clicked 'cancel' or closed the dialog box.
      */
     private boolean promptSaveState() {
         DisplayState state = this.constructDisplayState();
-        if(state.equals(study.getDisplayState()))
+        if(state.equals(study.getDisplayState())) {
             // Don't warn if nothing to save.
+            closeJournal();
             return true;
+        }
 
         //Custom button text
         Object[] options = {"Yes",
@@ -325,7 +519,20 @@ public class ImageView extends JFrame {
         
         // If user clicked yes or no, follow through with action. Otherwise, if
         // user clicked cancel or closed dialog, cancel action.
-        return n != 2 && n != JOptionPane.CLOSED_OPTION;
+        if(n == 2 || n == JOptionPane.CLOSED_OPTION)
+            return false;
+        closeJournal();
+        return true;
+    }
+    
+    /**
+     * Closes and deletes the journal, if there is one.
+     */
+    private void closeJournal() {
+        if(journal != null) {
+            journal.close();
+            journal = null;
+        }
     }
 
     /**
@@ -516,7 +723,7 @@ public class ImageView extends JFrame {
     }//GEN-LAST:event_nextButtonActionPerformed
 
     private void reconstructButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_reconstructButtonActionPerformed
-        ReconstructionOptionsView v = new ReconstructionOptionsView(this, study);
+        ReconstructionOptionsView v = new ReconstructionOptionsView(this, study, displayTransform);
         v.setVisible(true);
     }//GEN-LAST:event_reconstructButtonActionPerformed
 
@@ -0,0 +1,151 @@
+/**
+ * File: RenderedImageCache.java
+ * Description: Caches the images on screen, windowed and converted to the screen format.
+ */
+
+package medimage.views.improvedimageview;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.ImageIcon;
+import medimage.TransferFunction;
+import medimage.models.Image;
+
+/**
+ * Holds the displayed copies of recently shown images, so repainting or
+ * scrolling back to an image is just a blit.
+ * <p>
+ * Each image is windowed once and drawn into an image created by the
+ * screen's GraphicsConfiguration, which Swing can paint without converting
+ * it, and wrapped in an icon that's reused until the image changes. An entry
+ * is reused while the image's generation, the transfer function and the
+ * graphics configuration are the same as when it was made. Only a few
+ * entries are kept, since only the images on screen need them.
+ * @author col32
+ */
+class RenderedImageCache {
+
+    /**
+     * Number of images kept; enough for a 2x2 view and the sets either side.
+     */
+    private static final int CAPACITY = 12;
+
+    /**
+     * A rendered image and what it was made from.
+     */
+    private static class Entry {
+        long generation;
+        TransferFunction function;
+        GraphicsConfiguration config;
+        /** Windowed copy of the image's data, reused as scratch space. */
+        BufferedImage windowed;
+        /** The image in the screen's format. */
+        BufferedImage rendered;
+        ImageIcon icon;
+    }
+
+    private final Map<Image, Entry> entries = new LinkedHashMap<Image, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Image, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /**
+     * Gets an icon showing an image's data with a transfer function applied.
+     * @param img Image.
+     * @param function Transfer function.
+     * @param config Graphics configuration of the component showing the
+     * image, or null to use the default screen's.
+     * @return Icon, or null if the image's data can't be read.
+     */
+    ImageIcon get(Image img, TransferFunction function, GraphicsConfiguration config) {
+        if(config == null)
+            config = defaultConfiguration();
+
+        Entry e = entries.get(img);
+        long generation = img.getGeneration();
+        if(e != null && e.generation == generation && e.function == function && e.config == config)
+            return e.icon;
+
+        BufferedImage source = img.getImageData();
+        if(source == null)
+            return null;
+        if(e == null) {
+            e = new Entry();
+            entries.put(img, e);
+        }
+
+        BufferedImage windowed = source;
+        if(!function.isIdentity()) {
+            if(e.windowed != null && sameLayout(e.windowed, source))
+                // Same layout as before; write over the old pixels.
+                function.apply(source, e.windowed);
+            else
+                e.windowed = function.apply(source);
+            windowed = e.windowed;
+        } else
+            e.windowed = null;
+
+        BufferedImage rendered = windowed;
+        if(config != null) {
+            int transparency = windowed.getColorModel().getTransparency();
+            if(e.rendered == null || e.config != config ||
+                    e.rendered.getWidth() != windowed.getWidth() ||
+                    e.rendered.getHeight() != windowed.getHeight() ||
+                    e.rendered.getColorModel().getTransparency() != transparency)
+                e.rendered = config.createCompatibleImage(windowed.getWidth(), windowed.getHeight(), transparency);
+            Graphics2D g = e.rendered.createGraphics();
+            try {
+                g.setComposite(AlphaComposite.Src);
+                g.drawImage(windowed, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            rendered = e.rendered;
+        } else
+            e.rendered = null;
+
+        // A new icon, so the label notices that the image has changed.
+        e.icon = new ImageIcon(rendered);
+        e.generation = generation;
+        e.function = function;
+        e.config = config;
+        return e.icon;
+    }
+
+    /**
+     * Checks whether two images have the same type and size, so one can be
+     * windowed into the other.
+     * @param a Image.
+     * @param b Image.
+     * @return True if so.
+     */
+    private static boolean sameLayout(BufferedImage a, BufferedImage b) {
+        return a.getType() == b.getType() && b.getType() != BufferedImage.TYPE_CUSTOM &&
+                a.getWidth() == b.getWidth() && a.getHeight() == b.getHeight();
+    }
+
+    /**
+     * Gets the default screen's graphics configuration.
+     * @return Configuration, or null when there's no screen.
+     */
+    private static GraphicsConfiguration defaultConfiguration() {
+        if(GraphicsEnvironment.isHeadless())
+            return null;
+        return GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+    }
+
+    /**
+     * Drops all cached images.
+     */
+    void clear() {
+        entries.clear();
+    }
+}